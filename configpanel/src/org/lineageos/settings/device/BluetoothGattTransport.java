@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} on top of a real {@link BluetoothGatt} connection.
+ */
+final class BluetoothGattTransport extends BluetoothGattCallback implements GattTransport {
+
+    static final class Factory implements GattTransport.Factory {
+        private final Context mContext;
+        private final BluetoothDevice mDevice;
+
+        Factory(Context context, BluetoothDevice device) {
+            mContext = context;
+            mDevice = device;
+        }
+
+        @Override
+        public GattTransport connect(boolean autoConnect, Callback callback) {
+            BluetoothGattTransport transport = new BluetoothGattTransport(callback);
+            transport.mGatt = mDevice.connectGatt(mContext, autoConnect, transport);
+            return transport;
+        }
+    }
+
+    // Longest attribute value GATT allows
+    private static final int MAX_VALUE_LENGTH = 512;
+
+    private final Callback mCallback;
+    // Notifications are copied in here instead of wrapping each value.
+    // Callbacks of one connection arrive one at a time.
+    private final ByteBuffer mValue = ByteBuffer.allocate(MAX_VALUE_LENGTH);
+    private BluetoothGatt mGatt;
+
+    private BluetoothGattTransport(Callback callback) {
+        mCallback = callback;
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattService gattService = mGatt.getService(service);
+        return gattService != null ? gattService.getCharacteristic(characteristic) : null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID service, UUID characteristic) {
+        return getCharacteristic(service, characteristic) != null;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+            boolean enable) {
+        BluetoothGattCharacteristic c = getCharacteristic(service, characteristic);
+        return c != null && mGatt.setCharacteristicNotification(c, enable);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value) {
+        BluetoothGattCharacteristic c = getCharacteristic(service, characteristic);
+        if (c == null) {
+            return false;
+        }
+        c.setValue(value);
+        return mGatt.writeCharacteristic(c);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return mGatt.readRemoteRssi();
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mGatt.close();
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        mCallback.onConnectionStateChange(this, status, newState);
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        mCallback.onServicesDiscovered(this, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+            BluetoothGattCharacteristic characteristic, int status) {
+        mCallback.onCharacteristicWrite(this, characteristic.getService().getUuid(),
+                characteristic.getUuid(), status);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt,
+            BluetoothGattCharacteristic characteristic) {
+        byte[] value = characteristic.getValue();
+        mValue.clear();
+        mValue.put(value, 0, Math.min(value.length, MAX_VALUE_LENGTH));
+        mValue.flip();
+        mCallback.onCharacteristicChanged(this, characteristic.getService().getUuid(),
+                characteristic.getUuid(), mValue);
+    }
+
+    @Override
+    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        mCallback.onReadRemoteRssi(this, rssi, status);
+    }
+}
@@ -39,20 +39,22 @@ import android.os.ParcelUuid;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
-import android.text.TextUtils;
 import android.view.MenuItem;
 
 import org.lineageos.internal.util.ScreenType;
 import org.lineageos.settings.device.utils.Constants;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 @SuppressWarnings("deprecation")
 public class BluetoothInputSettings extends PreferenceActivity {
     private static final int BLUETOOTH_REQUEST_CODE = 1;
     private static final String CATEGORY_ACTIONS = "oclick_action_category";
     private static final String CATEGORY_ALERT = "oclick_alert_category";
+    private static final String KEY_ADD_DEVICE = "oclick_add_device";
 
     private ProgressDialog mProgressDialog;
     private boolean mConnected;
@@ -64,8 +66,8 @@ public class BluetoothInputSettings extends PreferenceActivity {
         @Override
         public void onReceive(Context context, Intent intent) {
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            String address = mPrefs.getString(Constants.OCLICK_DEVICE_ADDRESS_KEY, null);
-            if (device != null && TextUtils.equals(address, device.getAddress())) {
+            Set<String> addresses = Constants.getOclickDeviceAddresses(mPrefs);
+            if (device != null && addresses.contains(device.getAddress())) {
                 updateConnectedState();
             }
         }
@@ -129,11 +131,12 @@ public class BluetoothInputSettings extends PreferenceActivity {
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference pref) {
-        if (!pref.getKey().equals(Constants.OCLICK_CONNECT_KEY)) {
+        boolean addDevice = pref.getKey().equals(KEY_ADD_DEVICE);
+        if (!addDevice && !pref.getKey().equals(Constants.OCLICK_CONNECT_KEY)) {
             return super.onPreferenceTreeClick(preferenceScreen, pref);
         }
-        if (mConnected) {
-            mPrefs.edit().remove(Constants.OCLICK_DEVICE_ADDRESS_KEY).apply();
+        if (mConnected && !addDevice) {
+            Constants.setOclickDeviceAddresses(mPrefs, Collections.<String>emptySet());
             stopService(new Intent(this, OclickService.class));
             updateConnectedState();
         } else if (!mAdapter.isEnabled()) {
@@ -161,11 +164,11 @@ public class BluetoothInputSettings extends PreferenceActivity {
         List<ScanFilter> filters = new ArrayList<ScanFilter>();
         // O-Click 1
         filters.add(new ScanFilter.Builder()
-                .setServiceUuid(new ParcelUuid(OclickService.TRIGGER_SERVICE_UUID))
+                .setServiceUuid(new ParcelUuid(OclickConnection.TRIGGER_SERVICE_UUID))
                 .build());
         // O-Click 2
         filters.add(new ScanFilter.Builder()
-                .setServiceUuid(new ParcelUuid(OclickService.OCLICK2_SERVICE_UUID))
+                .setServiceUuid(new ParcelUuid(OclickConnection.OCLICK2_SERVICE_UUID))
                 .build());
 
         scanner.startScan(filters, settings, mScanCallback);
@@ -191,9 +194,14 @@ public class BluetoothInputSettings extends PreferenceActivity {
     }
 
     private void handleScanResult(ScanResult result) {
-        stopScanning();
         String address = result.getDevice().getAddress();
-        mPrefs.edit().putString(Constants.OCLICK_DEVICE_ADDRESS_KEY, address).apply();
+        Set<String> addresses = Constants.getOclickDeviceAddresses(mPrefs);
+        if (!addresses.add(address)) {
+            // Already paired, keep looking for the new one
+            return;
+        }
+        stopScanning();
+        Constants.setOclickDeviceAddresses(mPrefs, addresses);
         startService(new Intent(this, OclickService.class));
         updateConnectedState();
     }
@@ -207,16 +215,24 @@ public class BluetoothInputSettings extends PreferenceActivity {
     }
 
     private void updateConnectedState() {
-        String address = mPrefs.getString(Constants.OCLICK_DEVICE_ADDRESS_KEY, null);
-        mConnected = !TextUtils.isEmpty(address);
+        Set<String> addresses = Constants.getOclickDeviceAddresses(mPrefs);
+        mConnected = !addresses.isEmpty();
 
         findPreference(CATEGORY_ACTIONS).setEnabled(mConnected);
         findPreference(CATEGORY_ALERT).setEnabled(mConnected);
+        findPreference(KEY_ADD_DEVICE).setEnabled(mConnected);
 
         Preference connectPref = findPreference(Constants.OCLICK_CONNECT_KEY);
         connectPref.setTitle(mConnected ?
                 R.string.oclick_disconnect_string : R.string.oclick_connect_string);
-        if (mConnected && isBluetoothDeviceConnected(address)) {
+        boolean deviceConnected = false;
+        for (String address : addresses) {
+            if (isBluetoothDeviceConnected(address)) {
+                deviceConnected = true;
+                break;
+            }
+        }
+        if (deviceConnected) {
             connectPref.setSummary(R.string.oclick_summary_connected);
         } else if (mConnected) {
             connectPref.setSummary(R.string.oclick_summary_paired);
@@ -18,6 +18,8 @@
 package org.lineageos.settings.device;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.view.MenuItem;
 
@@ -27,12 +29,14 @@ import androidx.preference.PreferenceFragment;
 import androidx.preference.PreferenceGroup;
 import androidx.preference.SwitchPreference;
 
-import org.lineageos.internal.util.FileUtils;
 import org.lineageos.settings.device.utils.Constants;
+import org.lineageos.settings.device.utils.NodeWriter;
 
 public class ButtonSettingsFragment extends PreferenceFragment
         implements Preference.OnPreferenceChangeListener {
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
         addPreferencesFromResource(R.xml.button_panel);
@@ -41,15 +45,17 @@ public class ButtonSettingsFragment extends PreferenceFragment
 
     @Override
     public boolean onPreferenceChange(Preference preference, Object newValue) {
+        // Writability was probed along with the read, see addPreferencesFromResource()
+        NodeWriter nodeWriter = NodeWriter.getInstance();
         String node = Constants.sBooleanNodePreferenceMap.get(preference.getKey());
-        if (!TextUtils.isEmpty(node) && FileUtils.isFileWritable(node)) {
+        if (!TextUtils.isEmpty(node) && nodeWriter.isWritable(node)) {
             Boolean value = (Boolean) newValue;
-            FileUtils.writeLine(node, value ? "1" : "0");
+            nodeWriter.write(node, value ? "1" : "0");
             return true;
         }
         node = Constants.sStringNodePreferenceMap.get(preference.getKey());
-        if (!TextUtils.isEmpty(node) && FileUtils.isFileWritable(node)) {
-            FileUtils.writeLine(node, (String) newValue);
+        if (!TextUtils.isEmpty(node) && nodeWriter.isWritable(node)) {
+            nodeWriter.write(node, (String) newValue);
             return true;
         }
         return false;
@@ -58,29 +64,51 @@ public class ButtonSettingsFragment extends PreferenceFragment
     @Override
     public void addPreferencesFromResource(int preferencesResId) {
         super.addPreferencesFromResource(preferencesResId);
-        // Initialize node preferences
+        // Initialize node preferences. The nodes are read in the background,
+        // the preferences stay disabled until their value is known.
         for (String pref : Constants.sBooleanNodePreferenceMap.keySet()) {
-            SwitchPreference b = (SwitchPreference) findPreference(pref);
+            final SwitchPreference b = (SwitchPreference) findPreference(pref);
             if (b == null) continue;
             String node = Constants.sBooleanNodePreferenceMap.get(pref);
-            if (FileUtils.isFileReadable(node)) {
-                String curNodeValue = FileUtils.readOneLine(node);
-                b.setChecked(curNodeValue.equals("1"));
-                b.setOnPreferenceChangeListener(this);
-            } else {
-                removePref(b);
-            }
+            b.setEnabled(false);
+            NodeWriter.getInstance().read(node, mHandler, new NodeWriter.ReadCallback() {
+                @Override
+                public void onNodeRead(String node, String value) {
+                    if (!isAdded()) {
+                        // Left the screen while the node was read
+                        return;
+                    }
+                    if (value != null) {
+                        b.setChecked(value.equals("1"));
+                        b.setOnPreferenceChangeListener(ButtonSettingsFragment.this);
+                        b.setEnabled(true);
+                    } else {
+                        removePref(b);
+                    }
+                }
+            });
         }
         for (String pref : Constants.sStringNodePreferenceMap.keySet()) {
-            ListPreference l = (ListPreference) findPreference(pref);
+            final ListPreference l = (ListPreference) findPreference(pref);
             if (l == null) continue;
             String node = Constants.sStringNodePreferenceMap.get(pref);
-            if (FileUtils.isFileReadable(node)) {
-                l.setValue(FileUtils.readOneLine(node));
-                l.setOnPreferenceChangeListener(this);
-            } else {
-                removePref(l);
-            }
+            l.setEnabled(false);
+            NodeWriter.getInstance().read(node, mHandler, new NodeWriter.ReadCallback() {
+                @Override
+                public void onNodeRead(String node, String value) {
+                    if (!isAdded()) {
+                        // Left the screen while the node was read
+                        return;
+                    }
+                    if (value != null) {
+                        l.setValue(value);
+                        l.setOnPreferenceChangeListener(ButtonSettingsFragment.this);
+                        l.setEnabled(true);
+                    } else {
+                        removePref(l);
+                    }
+                }
+            });
         }
     }
 
@@ -23,6 +23,11 @@ import android.database.MatrixCursor;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesProvider;
 
+import org.lineageos.settings.device.utils.NodeWriter;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_CLASS_NAME;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_ICON_RESID;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INTENT_ACTION;
@@ -90,4 +95,14 @@ public class ConfigPanelSearchIndexablesProvider extends SearchIndexablesProvide
         MatrixCursor cursor = new MatrixCursor(NON_INDEXABLES_KEYS_COLUMNS);
         return cursor;
     }
+
+    /**
+     * Providers are created with the process, so this dumps the state
+     * shared by the whole process, like the node writer:
+     * adb shell dumpsys activity provider org.lineageos.settings.device
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        NodeWriter.getInstance().dump("", writer);
+    }
 }
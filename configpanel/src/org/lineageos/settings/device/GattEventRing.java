@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Moves GATT callbacks from the binder threads they arrive on to the
+ * thread of a handler, so a single thread owns all connection state.
+ *
+ * Producers claim a slot of a preallocated ring with a CAS on the claim
+ * sequence, copy the event into it and publish it by storing its
+ * sequence number. The handler thread consumes published slots in order
+ * and replays them to the target callback. Nothing is allocated and no
+ * lock is taken on either side.
+ *
+ * Only notifications may be dropped, and they can't take the last
+ * RESERVED slots. Connection state changes, service discovery and the
+ * completions of the operations we started use those, so they always
+ * fit: the operation queue keeps at most one operation in flight. A ring
+ * that is full even for those means the sizing below is wrong, which is
+ * reported loudly. The event is dropped rather than delivered out of
+ * order, the operation timeout of the queue recovers from that.
+ */
+final class GattEventRing implements GattTransport.Callback {
+
+    private static final String TAG = GattEventRing.class.getSimpleName();
+
+    // Must be a power of two
+    private static final int CAPACITY = 64;
+    // Slots notifications can't claim. A connection has at most four other
+    // events outstanding: connected, services discovered, the completion
+    // of the one operation in flight and disconnected. The ring is shared
+    // across reconnects, so a closing transport may still add its own.
+    private static final int RESERVED = 8;
+
+    private static final int EVENT_CONNECTION_STATE = 0;
+    private static final int EVENT_SERVICES_DISCOVERED = 1;
+    private static final int EVENT_CHARACTERISTIC_WRITE = 2;
+    private static final int EVENT_CHARACTERISTIC_CHANGED = 3;
+    private static final int EVENT_READ_REMOTE_RSSI = 4;
+
+    private static final class Slot {
+        int event;
+        GattTransport transport;
+        int status;
+        // New state or RSSI
+        int arg;
+        UUID service;
+        UUID characteristic;
+        final ByteBuffer value = Oclick2Codec.allocateBuffer();
+    }
+
+    private final GattTransport.Callback mTarget;
+    private final Handler mHandler;
+    private final Slot[] mSlots = new Slot[CAPACITY];
+    // Sequence number last published in each slot
+    private final AtomicLongArray mPublished = new AtomicLongArray(CAPACITY);
+    private final AtomicLong mClaimed = new AtomicLong();
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+    private final AtomicInteger mOverflows = new AtomicInteger();
+    private final AtomicInteger mTruncated = new AtomicInteger();
+    private final AtomicInteger mReservedOverflows = new AtomicInteger();
+
+    // Written by the consumer only, read by the producers
+    private volatile long mConsumed;
+    // Consumer only
+    private int mMaxDepth;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    GattEventRing(Handler handler, GattTransport.Callback target) {
+        mHandler = handler;
+        mTarget = target;
+        for (int i = 0; i < CAPACITY; i++) {
+            mSlots[i] = new Slot();
+            mPublished.set(i, -1);
+        }
+    }
+
+    @Override
+    public void onConnectionStateChange(GattTransport transport, int status, int newState) {
+        long seq = claim(true);
+        if (seq < 0) {
+            return;
+        }
+        Slot slot = fill(seq, EVENT_CONNECTION_STATE, transport, status);
+        slot.arg = newState;
+        publish(seq);
+    }
+
+    @Override
+    public void onServicesDiscovered(GattTransport transport, int status) {
+        long seq = claim(true);
+        if (seq < 0) {
+            return;
+        }
+        fill(seq, EVENT_SERVICES_DISCOVERED, transport, status);
+        publish(seq);
+    }
+
+    @Override
+    public void onCharacteristicWrite(GattTransport transport, UUID service,
+            UUID characteristic, int status) {
+        long seq = claim(true);
+        if (seq < 0) {
+            return;
+        }
+        Slot slot = fill(seq, EVENT_CHARACTERISTIC_WRITE, transport, status);
+        slot.service = service;
+        slot.characteristic = characteristic;
+        publish(seq);
+    }
+
+    @Override
+    public void onCharacteristicChanged(GattTransport transport, UUID service,
+            UUID characteristic, ByteBuffer value) {
+        long seq = claim(false);
+        if (seq < 0) {
+            return;
+        }
+        Slot slot = fill(seq, EVENT_CHARACTERISTIC_CHANGED, transport,
+                GattTransport.GATT_SUCCESS);
+        slot.service = service;
+        slot.characteristic = characteristic;
+        slot.value.clear();
+        if (value.remaining() > slot.value.capacity()) {
+            // Longer than any O-Click frame, only the trigger cares about these
+            mTruncated.incrementAndGet();
+            value.limit(value.position() + slot.value.capacity());
+        }
+        slot.value.put(value);
+        slot.value.flip();
+        publish(seq);
+    }
+
+    @Override
+    public void onReadRemoteRssi(GattTransport transport, int rssi, int status) {
+        long seq = claim(true);
+        if (seq < 0) {
+            return;
+        }
+        Slot slot = fill(seq, EVENT_READ_REMOTE_RSSI, transport, status);
+        slot.arg = rssi;
+        publish(seq);
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "eventRing: depth=" + (mClaimed.get() - mConsumed)
+                + " maxDepth=" + mMaxDepth + "/" + CAPACITY
+                + " overflows=" + mOverflows.get() + " truncated=" + mTruncated.get()
+                + " reservedOverflows=" + mReservedOverflows.get());
+    }
+
+    /**
+     * Claims the next slot, or returns -1 if the ring is full and the
+     * event has to be dropped. Everything but notifications may use the
+     * reserved slots.
+     */
+    private long claim(boolean reserved) {
+        long limit = reserved ? CAPACITY : CAPACITY - RESERVED;
+        long seq;
+        do {
+            seq = mClaimed.get();
+            if (seq - mConsumed >= limit) {
+                if (reserved) {
+                    mReservedOverflows.incrementAndGet();
+                    Log.wtf(TAG, "Event ring full, dropping a reserved event");
+                } else if (mOverflows.getAndIncrement() == 0) {
+                    // Further drops only show up in the dump
+                    Log.w(TAG, "Event ring full, dropping notifications");
+                }
+                return -1;
+            }
+        } while (!mClaimed.compareAndSet(seq, seq + 1));
+        return seq;
+    }
+
+    private Slot fill(long seq, int event, GattTransport transport, int status) {
+        Slot slot = mSlots[(int) seq & (CAPACITY - 1)];
+        slot.event = event;
+        slot.transport = transport;
+        slot.status = status;
+        return slot;
+    }
+
+    private void publish(long seq) {
+        mPublished.set((int) seq & (CAPACITY - 1), seq);
+        if (mDrainPending.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    private void drain() {
+        // Cleared before looking at the ring, so later events post again
+        mDrainPending.set(false);
+
+        long seq = mConsumed;
+        int depth = (int) (mClaimed.get() - seq);
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        while (true) {
+            int index = (int) seq & (CAPACITY - 1);
+            if (mPublished.get(index) != seq) {
+                // Empty, or claimed but not yet published
+                break;
+            }
+            dispatch(mSlots[index]);
+            // Only now the producers may reuse the slot
+            mConsumed = ++seq;
+        }
+    }
+
+    private void dispatch(Slot slot) {
+        GattTransport transport = slot.transport;
+        slot.transport = null;
+        switch (slot.event) {
+            case EVENT_CONNECTION_STATE:
+                mTarget.onConnectionStateChange(transport, slot.status, slot.arg);
+                break;
+            case EVENT_SERVICES_DISCOVERED:
+                mTarget.onServicesDiscovered(transport, slot.status);
+                break;
+            case EVENT_CHARACTERISTIC_WRITE:
+                mTarget.onCharacteristicWrite(transport, slot.service, slot.characteristic,
+                        slot.status);
+                break;
+            case EVENT_CHARACTERISTIC_CHANGED:
+                mTarget.onCharacteristicChanged(transport, slot.service, slot.characteristic,
+                        slot.value);
+                break;
+            case EVENT_READ_REMOTE_RSSI:
+                mTarget.onReadRemoteRssi(transport, slot.arg, slot.status);
+                break;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Serializes GATT operations. The stack only allows one outstanding
+ * operation per connection and silently drops anything issued while
+ * another one is in flight, so operations are queued here and the next
+ * one is only started once the previous one has completed, failed or
+ * timed out. It is only used from the thread of the handler passed in.
+ */
+final class GattOperationQueue {
+
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+
+    private static final int OPERATION_TIMEOUT = 5000;
+    private static final int RETRY_DELAY = 100;
+    private static final int MAX_RETRIES = 2;
+
+    /** Merge key for writes that must never be merged with other writes. */
+    static final int NO_MERGE = -1;
+
+    private static final int TYPE_WRITE_CHARACTERISTIC = 0;
+    private static final int TYPE_READ_RSSI = 1;
+
+    interface Callback {
+        // An RSSI read was given up on, no onReadRemoteRssi() will follow
+        void onReadRemoteRssiDropped();
+    }
+
+    private static final class Operation {
+        final int type;
+        final UUID service;
+        final UUID characteristic;
+        final int mergeKey;
+        byte[] value;
+        int retries;
+
+        Operation(int type, UUID service, UUID characteristic, byte[] value, int mergeKey) {
+            this.type = type;
+            this.service = service;
+            this.characteristic = characteristic;
+            this.value = value;
+            this.mergeKey = mergeKey;
+        }
+
+        boolean matches(UUID service, UUID characteristic) {
+            return this.service.equals(service) && this.characteristic.equals(characteristic);
+        }
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private GattTransport mTransport;
+    private Operation mCurrent;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCurrent != null) {
+                Log.w(TAG, "Operation " + mCurrent.type + " timed out");
+                onFailure();
+            }
+        }
+    };
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCurrent != null) {
+                execute();
+            }
+        }
+    };
+
+    GattOperationQueue(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Sets the connection operations are issued on, dropping everything
+     * queued for a previous connection.
+     */
+    void setTransport(GattTransport transport) {
+        clear();
+        mTransport = transport;
+    }
+
+    void clear() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mRetryRunnable);
+        mPending.clear();
+        mCurrent = null;
+    }
+
+    /**
+     * Queues a characteristic write. A write that is still queued for the
+     * same characteristic and merge key is updated with the new value
+     * instead, so only the latest value goes over the air.
+     */
+    void writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+            int mergeKey) {
+        if (mergeKey != NO_MERGE) {
+            for (Operation op : mPending) {
+                if (op.type == TYPE_WRITE_CHARACTERISTIC
+                        && op.matches(service, characteristic)
+                        && op.mergeKey == mergeKey) {
+                    op.value = value;
+                    return;
+                }
+            }
+        }
+        enqueue(new Operation(TYPE_WRITE_CHARACTERISTIC, service, characteristic, value,
+                mergeKey));
+    }
+
+    void readRemoteRssi() {
+        if (mCurrent != null && mCurrent.type == TYPE_READ_RSSI) {
+            return;
+        }
+        for (Operation op : mPending) {
+            if (op.type == TYPE_READ_RSSI) {
+                return;
+            }
+        }
+        enqueue(new Operation(TYPE_READ_RSSI, null, null, null, NO_MERGE));
+    }
+
+    void onCharacteristicWrite(UUID service, UUID characteristic, int status) {
+        // Alert levels of different services share a UUID, so compare the service too
+        if (mCurrent != null && mCurrent.type == TYPE_WRITE_CHARACTERISTIC
+                && mCurrent.matches(service, characteristic)) {
+            onComplete(status);
+        }
+    }
+
+    void onReadRemoteRssi(int status) {
+        if (mCurrent != null && mCurrent.type == TYPE_READ_RSSI) {
+            onComplete(status);
+        }
+    }
+
+    private void enqueue(Operation op) {
+        mPending.add(op);
+        next();
+    }
+
+    private void next() {
+        if (mCurrent != null || mTransport == null) {
+            return;
+        }
+        mCurrent = mPending.poll();
+        if (mCurrent != null) {
+            execute();
+        }
+    }
+
+    private void execute() {
+        boolean started;
+        switch (mCurrent.type) {
+            case TYPE_WRITE_CHARACTERISTIC:
+                started = mTransport.writeCharacteristic(mCurrent.service,
+                        mCurrent.characteristic, mCurrent.value);
+                break;
+            case TYPE_READ_RSSI:
+                started = mTransport.readRemoteRssi();
+                break;
+            default:
+                started = false;
+                break;
+        }
+
+        if (started) {
+            mHandler.postDelayed(mTimeoutRunnable, OPERATION_TIMEOUT);
+        } else {
+            onFailure();
+        }
+    }
+
+    private void onComplete(int status) {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (status != GattTransport.GATT_SUCCESS) {
+            Log.w(TAG, "Operation " + mCurrent.type + " failed with status " + status);
+            onFailure();
+            return;
+        }
+        mCurrent = null;
+        next();
+    }
+
+    private void onFailure() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (mCurrent.retries < MAX_RETRIES) {
+            mCurrent.retries++;
+            mHandler.postDelayed(mRetryRunnable, RETRY_DELAY);
+            return;
+        }
+        Log.e(TAG, "Giving up on operation " + mCurrent.type);
+        boolean rssiDropped = mCurrent.type == TYPE_READ_RSSI;
+        mCurrent = null;
+        next();
+        if (rssiDropped) {
+            mCallback.onReadRemoteRssiDropped();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * The subset of a GATT client connection the O-Click code relies on.
+ * Characteristics and descriptors are addressed by UUID instead of the
+ * framework objects, so the connection logic can be driven by a fake
+ * peripheral in tests as well as by a real device through
+ * {@link BluetoothGattTransport}.
+ *
+ * Status and state values match the ones of BluetoothGatt. Operations
+ * return whether they were started, their result is reported through
+ * the {@link Callback}.
+ */
+interface GattTransport {
+
+    int GATT_SUCCESS = 0;
+    int GATT_FAILURE = 0x101;
+
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTED = 2;
+
+    interface Factory {
+        /**
+         * Starts connecting to the device. With autoConnect the attempt
+         * doesn't time out but waits for the device to become available.
+         */
+        GattTransport connect(boolean autoConnect, Callback callback);
+    }
+
+    /**
+     * Receives the results of a connection, on an arbitrary thread. The
+     * value of a changed characteristic lies between the position and the
+     * limit of the buffer and is only valid during the call.
+     */
+    interface Callback {
+        void onConnectionStateChange(GattTransport transport, int status, int newState);
+        void onServicesDiscovered(GattTransport transport, int status);
+        void onCharacteristicWrite(GattTransport transport, UUID service, UUID characteristic,
+                int status);
+        void onCharacteristicChanged(GattTransport transport, UUID service,
+                UUID characteristic, ByteBuffer value);
+        void onReadRemoteRssi(GattTransport transport, int rssi, int status);
+    }
+
+    boolean discoverServices();
+
+    /**
+     * Returns whether the discovered services contain the characteristic.
+     */
+    boolean hasCharacteristic(UUID service, UUID characteristic);
+
+    boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable);
+
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value);
+
+    boolean readRemoteRssi();
+
+    void disconnect();
+
+    void close();
+}
@@ -19,131 +19,354 @@ package org.lineageos.settings.device;
 
 import android.Manifest;
 import android.app.NotificationManager;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
 import android.media.AudioManager;
 import android.media.session.MediaSessionLegacyHelper;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.PowerManagerInternal;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
 import android.provider.Settings;
 import android.util.Log;
-import android.util.SparseIntArray;
 import android.view.KeyEvent;
 
 import com.android.internal.os.DeviceKeyHandler;
-import com.android.internal.util.ArrayUtils;
+import com.android.server.LocalServices;
 
 import lineageos.providers.LineageSettings;
 
+import java.io.PrintWriter;
+
 public class KeyHandler implements DeviceKeyHandler {
 
     private static final String TAG = KeyHandler.class.getSimpleName();
+    private static final String PACKAGE_NAME = "org.lineageos.settings.device";
+
     private static final int GESTURE_REQUEST = 1;
+    private static final int SLIDER_REQUEST = 2;
+    private static final int ACTION_REQUEST = 3;
+    private static final int GESTURE_WAKELOCK_TIMEOUT = 4;
+    private static final int PROXIMITY_CHECK_REQUEST = 5;
+    private static final int PROXIMITY_CHECK_TIMEOUT = 6;
 
-    private static final int ZEN_MODE_VIBRATION = 4;
+    // Upper bound for holding the gesture wakelock if no camera gets opened
+    private static final int GESTURE_WAKELOCK_DURATION = 3000;
 
-    // Supported scancodes
-    private static final int FLIP_CAMERA_SCANCODE = 249;
-    private static final int MODE_TOTAL_SILENCE = 600;
-    private static final int MODE_VIBRATION = 601;
-    private static final int MODE_PRIORITY_ONLY = 602;
-    private static final int MODE_NONE = 603;
+    // android.hardware.power.Boost.CAMERA_LAUNCH
+    private static final int POWER_BOOST_CAMERA_LAUNCH = 4;
 
-    private static final int GESTURE_WAKELOCK_DURATION = 3000;
+    // How long a proximity reading stays valid for following gestures
+    private static final int PROXIMITY_READING_VALIDITY = 500;
 
-    private static final SparseIntArray sSupportedSliderModes = new SparseIntArray();
-    static {
-        sSupportedSliderModes.put(MODE_TOTAL_SILENCE, Settings.Global.ZEN_MODE_NO_INTERRUPTIONS);
-        sSupportedSliderModes.put(MODE_VIBRATION, ZEN_MODE_VIBRATION);
-        sSupportedSliderModes.put(MODE_PRIORITY_ONLY,
-                Settings.Global.ZEN_MODE_IMPORTANT_INTERRUPTIONS);
-        sSupportedSliderModes.put(MODE_NONE, Settings.Global.ZEN_MODE_OFF);
-    }
+    // Time the slider has to rest in a position before it gets committed
+    private static final int SLIDER_SETTLE_DELAY = 100;
+
+    private static final int HAPTIC_PULSE_DURATION = 30;
+    private static final int HAPTIC_PULSE_GAP = 70;
+
+    private static final long DUMP_TIMEOUT = 5000;
 
     private final Context mContext;
     private final AudioManager mAudioManager;
     private final PowerManager mPowerManager;
+    private final PowerManagerInternal mPowerManagerInternal;
     private final NotificationManager mNotificationManager;
+    private final HandlerThread mHandlerThread;
     private EventHandler mEventHandler;
     private SensorManager mSensorManager;
     private Sensor mProximitySensor;
     private Vibrator mVibrator;
+    // Prebuilt haptic feedback, indexed by action
+    private VibrationEffect[] mHapticEffects;
+    private CameraManager mCameraManager;
+    private String mTorchCameraId;
+    private boolean mTorchEnabled;
     WakeLock mProximityWakeLock;
+    private ProximityCheck mProximityCheck;
     WakeLock mGestureWakeLock;
     private int mProximityTimeOut;
     private boolean mProximityWakeSupported;
+    private boolean mSpeculativeCameraLaunch;
+    private final Intent mCameraGestureIntent =
+            new Intent(lineageos.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
+    private boolean mProximityWakeDefault;
+    // Action for each scancode, indexed by scancode
+    private int[] mScancodeActions = new int[0];
+    // Only accessed from mHandlerThread
+    private int mCurrentSliderAction = ScancodeActions.ACTION_NONE;
+    private volatile SettingsSnapshot mSettings;
+    private SettingsObserver mSettingsObserver;
+
+    // Latency statistics, indexed by scancode
+    private KeyStats[] mKeyStats = new KeyStats[0];
+    private volatile long mSliderEntryTime;
+    private volatile long mGestureEntryTime;
+    private int mProximityVetoes;
+    private int mProximityTimeouts;
+
+    // Gesture wakelock accounting, only accessed from mHandlerThread
+    private boolean mGestureLaunchPending;
+    private long mGestureWakeLockAcquireTime;
+    private long mGestureWakeLockHeldTime;
+    private int mGestureWakeLockLaunches;
+    private int mGestureWakeLockTimeouts;
 
     public KeyHandler(Context context) {
         mContext = context;
         mAudioManager = context.getSystemService(AudioManager.class);
         mPowerManager = context.getSystemService(PowerManager.class);
+        mPowerManagerInternal = LocalServices.getService(PowerManagerInternal.class);
         mNotificationManager = context.getSystemService(NotificationManager.class);
-        mEventHandler = new EventHandler();
+
+        // Everything beyond classifying the scancode runs on this thread, so
+        // a slow system service can never hold up input dispatch.
+        mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mHandlerThread.start();
+        mEventHandler = new EventHandler(mHandlerThread.getLooper());
         mGestureWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                 "GestureWakeLock");
+        mGestureWakeLock.setReferenceCounted(false);
 
         final Resources resources = mContext.getResources();
         mProximityTimeOut = resources.getInteger(
                 org.lineageos.platform.internal.R.integer.config_proximityCheckTimeout);
         mProximityWakeSupported = resources.getBoolean(
                 org.lineageos.platform.internal.R.bool.config_proximityCheckOnWake);
+        mProximityWakeDefault = resources.getBoolean(
+                org.lineageos.platform.internal.R.bool.config_proximityCheckOnWakeEnabledByDefault);
 
         if (mProximityWakeSupported) {
             mSensorManager = context.getSystemService(SensorManager.class);
             mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
             mProximityWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                     "ProximityWakeLock");
+            mProximityWakeLock.setReferenceCounted(false);
+            mProximityCheck = new ProximityCheck();
         }
 
         mVibrator = context.getSystemService(Vibrator.class);
         if (mVibrator == null || !mVibrator.hasVibrator()) {
             mVibrator = null;
         }
+
+        mSettingsObserver = new SettingsObserver(mEventHandler);
+        mSettingsObserver.observe();
+
+        try {
+            Context packageContext = mContext.createPackageContext(PACKAGE_NAME, 0);
+            Resources packageResources = packageContext.getResources();
+            mScancodeActions = ScancodeActions.loadTable(packageResources);
+            mSpeculativeCameraLaunch = packageResources.getBoolean(
+                    R.bool.config_speculativeCameraLaunch);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Failed to load scancode actions", e);
+        }
+
+        if (mVibrator != null) {
+            mHapticEffects = createHapticEffects();
+        }
+
+        mKeyStats = new KeyStats[mScancodeActions.length];
+        for (int scancode = 0; scancode < mScancodeActions.length; scancode++) {
+            int action = mScancodeActions[scancode];
+            if (action != ScancodeActions.ACTION_NONE) {
+                mKeyStats[scancode] = new KeyStats(
+                        scancode + " (" + ScancodeActions.getName(action) + ")");
+            }
+        }
+    }
+
+    private static final class KeyStats {
+        final String name;
+        final LatencyHistogram dispatch = new LatencyHistogram("event to dispatch");
+        final LatencyHistogram zenCommit = new LatencyHistogram("dispatch to zen commit");
+        final LatencyHistogram cameraBroadcast =
+                new LatencyHistogram("dispatch to camera broadcast");
+
+        KeyStats(String name) {
+            this.name = name;
+        }
+
+        void dump(String prefix, PrintWriter pw) {
+            pw.print(prefix);
+            pw.print(name);
+            pw.println(":");
+            dispatch.dump(prefix + "  ", pw);
+            zenCommit.dump(prefix + "  ", pw);
+            cameraBroadcast.dump(prefix + "  ", pw);
+        }
+    }
+
+    /**
+     * Immutable copy of the settings consulted while handling key events.
+     * Replaced as a whole by {@link SettingsObserver}, so the input path only
+     * needs a single volatile read of {@link #mSettings}.
+     */
+    private static final class SettingsSnapshot {
+        final boolean setupCompleted;
+        final boolean proximityWakeCheckEnabled;
+        final boolean hapticFeedbackEnabled;
+
+        SettingsSnapshot(boolean setupCompleted, boolean proximityWakeCheckEnabled,
+                boolean hapticFeedbackEnabled) {
+            this.setupCompleted = setupCompleted;
+            this.proximityWakeCheckEnabled = proximityWakeCheckEnabled;
+            this.hapticFeedbackEnabled = hapticFeedbackEnabled;
+        }
+    }
+
+    private class SettingsObserver extends ContentObserver {
+        SettingsObserver(Handler handler) {
+            super(handler);
+        }
+
+        void observe() {
+            ContentResolver resolver = mContext.getContentResolver();
+            resolver.registerContentObserver(Settings.Secure.getUriFor(
+                    Settings.Secure.USER_SETUP_COMPLETE), false, this);
+            resolver.registerContentObserver(LineageSettings.System.getUriFor(
+                    LineageSettings.System.PROXIMITY_ON_WAKE), false, this);
+            resolver.registerContentObserver(LineageSettings.System.getUriFor(
+                    LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK), false, this);
+            update();
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            update();
+        }
+
+        private void update() {
+            ContentResolver resolver = mContext.getContentResolver();
+            boolean setupCompleted = Settings.Secure.getInt(resolver,
+                    Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
+            boolean proximityWakeCheckEnabled = LineageSettings.System.getInt(resolver,
+                    LineageSettings.System.PROXIMITY_ON_WAKE,
+                    mProximityWakeDefault ? 1 : 0) == 1;
+            boolean hapticFeedbackEnabled = LineageSettings.System.getInt(resolver,
+                    LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
+            mSettings = new SettingsSnapshot(setupCompleted, proximityWakeCheckEnabled,
+                    hapticFeedbackEnabled);
+        }
     }
 
     private class EventHandler extends Handler {
+        EventHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
-            if (msg.arg1 == FLIP_CAMERA_SCANCODE) {
-                mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
+            switch (msg.what) {
+                case GESTURE_REQUEST:
+                    acquireGestureWakeLock();
+                    mContext.sendBroadcast(mCameraGestureIntent,
+                            Manifest.permission.STATUS_BAR_SERVICE);
+                    mKeyStats[msg.arg1].cameraBroadcast.record(
+                            SystemClock.uptimeMillis() - mGestureEntryTime);
+                    doHapticFeedback(ScancodeActions.ACTION_CAMERA_GESTURE);
+                    break;
+                case SLIDER_REQUEST:
+                    setSliderMode(msg.arg1);
+                    break;
+                case ACTION_REQUEST:
+                    performAction(mScancodeActions[msg.arg1]);
+                    break;
+                case PROXIMITY_CHECK_REQUEST:
+                    mProximityCheck.start(msg.arg1);
+                    break;
+                case PROXIMITY_CHECK_TIMEOUT:
+                    mProximityCheck.onTimeout();
+                    break;
+                case GESTURE_WAKELOCK_TIMEOUT:
+                    mGestureWakeLockTimeouts++;
+                    releaseGestureWakeLock();
+                    break;
+            }
+        }
+    }
 
-                Intent intent = new Intent(
-                        lineageos.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
-                mContext.sendBroadcast(intent, Manifest.permission.STATUS_BAR_SERVICE);
-                doHapticFeedback();
+    /**
+     * Ends the gesture wakelock once a camera gets opened, which is when the
+     * launch the gesture asked for has completed. Only registered while a
+     * launch is pending. Registering reports cameras that are open already
+     * right away, so the wakelock isn't held for a camera that is up.
+     */
+    private final CameraManager.AvailabilityCallback mCameraLaunchCallback =
+            new CameraManager.AvailabilityCallback() {
+        @Override
+        public void onCameraUnavailable(String cameraId) {
+            if (mGestureLaunchPending) {
+                mGestureWakeLockLaunches++;
+                releaseGestureWakeLock();
             }
         }
+    };
+
+    private void acquireGestureWakeLock() {
+        if (!mGestureLaunchPending) {
+            mGestureLaunchPending = true;
+            mGestureWakeLockAcquireTime = SystemClock.elapsedRealtime();
+            mContext.getSystemService(CameraManager.class).registerAvailabilityCallback(
+                    mCameraLaunchCallback, mEventHandler);
+        }
+        mEventHandler.removeMessages(GESTURE_WAKELOCK_TIMEOUT);
+        mEventHandler.sendEmptyMessageDelayed(GESTURE_WAKELOCK_TIMEOUT,
+                GESTURE_WAKELOCK_DURATION);
+        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
     }
 
-    private boolean hasSetupCompleted() {
-        return Settings.Secure.getInt(mContext.getContentResolver(),
-                Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
+    private void releaseGestureWakeLock() {
+        if (!mGestureLaunchPending) {
+            return;
+        }
+        mGestureLaunchPending = false;
+        mContext.getSystemService(CameraManager.class).unregisterAvailabilityCallback(
+                mCameraLaunchCallback);
+        mEventHandler.removeMessages(GESTURE_WAKELOCK_TIMEOUT);
+        if (mGestureWakeLock.isHeld()) {
+            mGestureWakeLock.release();
+        }
+        mGestureWakeLockHeldTime += SystemClock.elapsedRealtime() - mGestureWakeLockAcquireTime;
     }
 
     public KeyEvent handleKeyEvent(KeyEvent event) {
         int scanCode = event.getScanCode();
-        boolean isKeySupported = scanCode == FLIP_CAMERA_SCANCODE;
-        boolean isSliderModeSupported = sSupportedSliderModes.indexOfKey(scanCode) >= 0;
-        if (!isKeySupported && !isSliderModeSupported) {
+        int action = scanCode >= 0 && scanCode < mScancodeActions.length
+                ? mScancodeActions[scanCode] : ScancodeActions.ACTION_NONE;
+        if (action == ScancodeActions.ACTION_NONE) {
             return event;
         }
 
-        if (!hasSetupCompleted()) {
+        final long entryTime = SystemClock.uptimeMillis();
+        mKeyStats[scanCode].dispatch.record(entryTime - event.getEventTime());
+
+        final SettingsSnapshot settings = mSettings;
+        if (!settings.setupCompleted) {
             return event;
         }
 
-        // We only want ACTION_UP event, except FLIP_CAMERA_SCANCODE
-        if (scanCode == FLIP_CAMERA_SCANCODE) {
+        // We only want ACTION_UP event, except for the camera gesture
+        if (action == ScancodeActions.ACTION_CAMERA_GESTURE) {
             if (event.getAction() != KeyEvent.ACTION_DOWN) {
                 return null;
             }
@@ -151,27 +374,25 @@ public class KeyHandler implements DeviceKeyHandler {
             return null;
         }
 
-        if (isSliderModeSupported) {
-            if (scanCode == MODE_VIBRATION) {
-                mNotificationManager.setZenMode(Settings.Global.ZEN_MODE_OFF, null, TAG);
-                mAudioManager.setRingerModeInternal(AudioManager.RINGER_MODE_VIBRATE);
-            } else {
-                mAudioManager.setRingerModeInternal(AudioManager.RINGER_MODE_NORMAL);
-                mNotificationManager.setZenMode(sSupportedSliderModes.get(scanCode), null, TAG);
-            }
-            doHapticFeedback();
-        } else if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-            Message msg = getMessageForKeyEvent(scanCode);
-            boolean defaultProximity = mContext.getResources().getBoolean(
-                org.lineageos.platform.internal.R.bool.config_proximityCheckOnWakeEnabledByDefault);
-            boolean proximityWakeCheckEnabled = LineageSettings.System.getInt(
-                    mContext.getContentResolver(), LineageSettings.System.PROXIMITY_ON_WAKE,
-                    defaultProximity ? 1 : 0) == 1;
-            if (mProximityWakeSupported && proximityWakeCheckEnabled && mProximitySensor != null) {
-                mEventHandler.sendMessageDelayed(msg, mProximityTimeOut);
-                processEvent(scanCode);
+        if (ScancodeActions.isSliderAction(action)) {
+            // Only commit the position the slider settles in, a quick sweep
+            // produces one event for every position it passes.
+            mEventHandler.removeMessages(SLIDER_REQUEST);
+            mSliderEntryTime = entryTime;
+            mEventHandler.sendMessageDelayed(
+                    mEventHandler.obtainMessage(SLIDER_REQUEST, scanCode, 0),
+                    SLIDER_SETTLE_DELAY);
+        } else if (action != ScancodeActions.ACTION_CAMERA_GESTURE) {
+            mEventHandler.obtainMessage(ACTION_REQUEST, scanCode, 0).sendToTarget();
+        } else if (!mEventHandler.hasMessages(GESTURE_REQUEST)
+                && !mEventHandler.hasMessages(PROXIMITY_CHECK_REQUEST)) {
+            mGestureEntryTime = entryTime;
+            if (mProximityWakeSupported && settings.proximityWakeCheckEnabled
+                    && mProximitySensor != null) {
+                mEventHandler.obtainMessage(PROXIMITY_CHECK_REQUEST, scanCode, 0)
+                        .sendToTarget();
             } else {
-                mEventHandler.sendMessage(msg);
+                mEventHandler.sendMessage(getMessageForKeyEvent(scanCode));
             }
         }
         return null;
@@ -183,39 +404,318 @@ public class KeyHandler implements DeviceKeyHandler {
         return msg;
     }
 
-    private void processEvent(final int scancode) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
-                mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took to long, ignoring.
-                    return;
-                }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] == mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForKeyEvent(scancode);
-                    mEventHandler.sendMessage(msg);
+    private void setSliderMode(int scancode) {
+        int action = mScancodeActions[scancode];
+        if (action == mCurrentSliderAction && isSliderActionApplied(action)) {
+            return;
+        }
+        mCurrentSliderAction = action;
+
+        switch (action) {
+            case ScancodeActions.ACTION_RINGER_VIBRATE:
+                mNotificationManager.setZenMode(Settings.Global.ZEN_MODE_OFF, null, TAG);
+                mAudioManager.setRingerModeInternal(AudioManager.RINGER_MODE_VIBRATE);
+                break;
+            case ScancodeActions.ACTION_RINGER_SILENT:
+                mNotificationManager.setZenMode(Settings.Global.ZEN_MODE_OFF, null, TAG);
+                mAudioManager.setRingerModeInternal(AudioManager.RINGER_MODE_SILENT);
+                break;
+            default:
+                mAudioManager.setRingerModeInternal(AudioManager.RINGER_MODE_NORMAL);
+                mNotificationManager.setZenMode(getZenMode(action), null, TAG);
+                break;
+        }
+        mKeyStats[scancode].zenCommit.record(SystemClock.uptimeMillis() - mSliderEntryTime);
+        doHapticFeedback(action);
+    }
+
+    private boolean isSliderActionApplied(int action) {
+        int zenMode = mNotificationManager.getZenMode();
+        int ringerMode = mAudioManager.getRingerModeInternal();
+        switch (action) {
+            case ScancodeActions.ACTION_RINGER_VIBRATE:
+                return zenMode == Settings.Global.ZEN_MODE_OFF
+                        && ringerMode == AudioManager.RINGER_MODE_VIBRATE;
+            case ScancodeActions.ACTION_RINGER_SILENT:
+                return zenMode == Settings.Global.ZEN_MODE_OFF
+                        && ringerMode == AudioManager.RINGER_MODE_SILENT;
+            case ScancodeActions.ACTION_ZEN_OFF:
+                return zenMode == Settings.Global.ZEN_MODE_OFF
+                        && ringerMode == AudioManager.RINGER_MODE_NORMAL;
+            default:
+                // The zen mode controller owns the ringer mode in these modes
+                return zenMode == getZenMode(action);
+        }
+    }
+
+    private static int getZenMode(int action) {
+        switch (action) {
+            case ScancodeActions.ACTION_ZEN_IMPORTANT_INTERRUPTIONS:
+                return Settings.Global.ZEN_MODE_IMPORTANT_INTERRUPTIONS;
+            case ScancodeActions.ACTION_ZEN_ALARMS:
+                return Settings.Global.ZEN_MODE_ALARMS;
+            case ScancodeActions.ACTION_ZEN_NO_INTERRUPTIONS:
+                return Settings.Global.ZEN_MODE_NO_INTERRUPTIONS;
+            default:
+                return Settings.Global.ZEN_MODE_OFF;
+        }
+    }
+
+    private void performAction(int action) {
+        switch (action) {
+            case ScancodeActions.ACTION_TORCH:
+                toggleTorch();
+                doHapticFeedback(action);
+                break;
+            case ScancodeActions.ACTION_MEDIA_PLAY_PAUSE:
+                dispatchMediaKey(KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+                break;
+            case ScancodeActions.ACTION_MEDIA_NEXT:
+                dispatchMediaKey(KeyEvent.KEYCODE_MEDIA_NEXT);
+                break;
+            case ScancodeActions.ACTION_MEDIA_PREVIOUS:
+                dispatchMediaKey(KeyEvent.KEYCODE_MEDIA_PREVIOUS);
+                break;
+        }
+    }
+
+    private void toggleTorch() {
+        if (mCameraManager == null) {
+            mCameraManager = mContext.getSystemService(CameraManager.class);
+            mTorchCameraId = getTorchCameraId();
+            if (mTorchCameraId == null) {
+                Log.w(TAG, "No camera with a flash unit found");
+                return;
+            }
+            mCameraManager.registerTorchCallback(mTorchCallback, mEventHandler);
+        }
+        if (mTorchCameraId == null) {
+            return;
+        }
+        try {
+            mCameraManager.setTorchMode(mTorchCameraId, !mTorchEnabled);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to toggle torch", e);
+        }
+    }
+
+    private String getTorchCameraId() {
+        try {
+            for (String id : mCameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics =
+                        mCameraManager.getCameraCharacteristics(id);
+                Boolean flashAvailable =
+                        characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (flashAvailable != null && flashAvailable && lensFacing != null
+                        && lensFacing == CameraCharacteristics.LENS_FACING_BACK) {
+                    return id;
                 }
             }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query cameras", e);
+        }
+        return null;
+    }
 
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    private final CameraManager.TorchCallback mTorchCallback = new CameraManager.TorchCallback() {
+        @Override
+        public void onTorchModeChanged(String cameraId, boolean enabled) {
+            if (cameraId.equals(mTorchCameraId)) {
+                mTorchEnabled = enabled;
+            }
+        }
+
+        @Override
+        public void onTorchModeUnavailable(String cameraId) {
+            if (cameraId.equals(mTorchCameraId)) {
+                mTorchEnabled = false;
+            }
+        }
+    };
 
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
+    private void dispatchMediaKey(int keycode) {
+        long now = SystemClock.uptimeMillis();
+        MediaSessionLegacyHelper helper = MediaSessionLegacyHelper.getHelper(mContext);
+        helper.sendMediaButtonEvent(new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keycode, 0),
+                true);
+        helper.sendMediaButtonEvent(new KeyEvent(now, now, KeyEvent.ACTION_UP, keycode, 0),
+                true);
     }
 
-    private void doHapticFeedback() {
-        if (mVibrator == null) {
+    /**
+     * Proximity check run before a gesture fires. The sensor is only
+     * enabled for the duration of one check, which always ends by the
+     * timeout at the latest. A reading is reused for following gestures
+     * while it is fresh, so those skip the sensor entirely.
+     * Only accessed from mHandlerThread.
+     */
+    private class ProximityCheck implements SensorEventListener {
+        private boolean mActive;
+        private int mScancode;
+        private boolean mLastReadingFar;
+        private long mLastReadingTime;
+        private boolean mHasReading;
+
+        void start(int scancode) {
+            if (mActive) {
+                return;
+            }
+            if (mHasReading && SystemClock.elapsedRealtime() - mLastReadingTime
+                    < PROXIMITY_READING_VALIDITY) {
+                onResult(scancode, mLastReadingFar);
+                return;
+            }
+
+            mActive = true;
+            mScancode = scancode;
+            mProximityWakeLock.acquire(mProximityTimeOut);
+            mSensorManager.registerListener(this, mProximitySensor,
+                    SensorManager.SENSOR_DELAY_FASTEST, mEventHandler);
+            mEventHandler.sendEmptyMessageDelayed(PROXIMITY_CHECK_TIMEOUT, mProximityTimeOut);
+            startSpeculativeLaunch();
+        }
+
+        void onTimeout() {
+            if (!mActive) {
+                return;
+            }
+            // Don't keep the user waiting for a sensor that never reports
+            mProximityTimeouts++;
+            stop();
+            mEventHandler.sendMessage(getMessageForKeyEvent(mScancode));
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (!mActive) {
+                return;
+            }
+            mLastReadingFar = event.values[0] == mProximitySensor.getMaximumRange();
+            mLastReadingTime = SystemClock.elapsedRealtime();
+            mHasReading = true;
+            stop();
+            onResult(mScancode, mLastReadingFar);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+        private void onResult(int scancode, boolean far) {
+            if (far) {
+                mEventHandler.sendMessage(getMessageForKeyEvent(scancode));
+            } else {
+                mProximityVetoes++;
+                cancelSpeculativeLaunch();
+            }
+        }
+
+        /**
+         * Prepares the device for the camera launch while the sensor is
+         * still settling, so the launch doesn't start from cold once the
+         * check passes. Waking the screen is left to the receiver of the
+         * gesture, as that can't be undone unnoticed if the device turns
+         * out to be in a pocket.
+         */
+        private void startSpeculativeLaunch() {
+            if (mSpeculativeCameraLaunch && mPowerManagerInternal != null) {
+                mPowerManagerInternal.setPowerBoost(POWER_BOOST_CAMERA_LAUNCH,
+                        mProximityTimeOut);
+            }
+        }
+
+        private void cancelSpeculativeLaunch() {
+            if (mSpeculativeCameraLaunch && mPowerManagerInternal != null) {
+                // A negative duration cancels the boost
+                mPowerManagerInternal.setPowerBoost(POWER_BOOST_CAMERA_LAUNCH, -1);
+            }
+        }
+
+        private void stop() {
+            mActive = false;
+            mEventHandler.removeMessages(PROXIMITY_CHECK_TIMEOUT);
+            mSensorManager.unregisterListener(this);
+            mProximityWakeLock.release();
+        }
+    }
+
+    /**
+     * Builds the haptic feedback for every action up front. Slider positions
+     * are told apart by the number of pulses, everything else uses a single
+     * short pulse.
+     */
+    private static VibrationEffect[] createHapticEffects() {
+        VibrationEffect click = VibrationEffect.createOneShot(50,
+                VibrationEffect.DEFAULT_AMPLITUDE);
+        VibrationEffect[] effects = new VibrationEffect[ScancodeActions.ACTION_COUNT];
+        effects[ScancodeActions.ACTION_ZEN_OFF] = click;
+        effects[ScancodeActions.ACTION_RINGER_VIBRATE] = VibrationEffect.createOneShot(
+                100, VibrationEffect.DEFAULT_AMPLITUDE);
+        effects[ScancodeActions.ACTION_ZEN_IMPORTANT_INTERRUPTIONS] = createPulses(2);
+        effects[ScancodeActions.ACTION_ZEN_ALARMS] = createPulses(2);
+        effects[ScancodeActions.ACTION_RINGER_SILENT] = createPulses(3);
+        effects[ScancodeActions.ACTION_ZEN_NO_INTERRUPTIONS] = createPulses(3);
+        effects[ScancodeActions.ACTION_CAMERA_GESTURE] = click;
+        effects[ScancodeActions.ACTION_TORCH] = click;
+        return effects;
+    }
+
+    private static VibrationEffect createPulses(int count) {
+        long[] timings = new long[count * 2];
+        for (int i = 0; i < count; i++) {
+            timings[i * 2] = i == 0 ? 0 : HAPTIC_PULSE_GAP;
+            timings[i * 2 + 1] = HAPTIC_PULSE_DURATION;
+        }
+        return VibrationEffect.createWaveform(timings, -1);
+    }
+
+    private void doHapticFeedback(int action) {
+        if (mVibrator == null || !mSettings.hapticFeedbackEnabled) {
             return;
         }
-        boolean enabled = LineageSettings.System.getInt(mContext.getContentResolver(),
-                LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
-        if (enabled) {
-            mVibrator.vibrate(VibrationEffect.createOneShot(50,
-                    VibrationEffect.DEFAULT_AMPLITUDE));
+        VibrationEffect effect = mHapticEffects[action];
+        if (effect != null) {
+            mVibrator.vibrate(effect);
+        }
+    }
+
+    /**
+     * Prints proximity check counters and per-scancode latency histograms,
+     * in the format of the window manager policy dump it is part of.
+     */
+    public void dump(final String prefix, final PrintWriter pw) {
+        // The counters belong to mHandlerThread
+        boolean done = mEventHandler.runWithScissors(new Runnable() {
+            @Override
+            public void run() {
+                dumpStats(prefix, pw);
+            }
+        }, DUMP_TIMEOUT);
+        if (!done) {
+            pw.print(prefix);
+            pw.println(TAG + ": handler thread busy");
+        }
+    }
+
+    private void dumpStats(String prefix, PrintWriter pw) {
+        pw.print(prefix);
+        pw.println(TAG + ":");
+        pw.print(prefix);
+        pw.print("  proximity vetoes=");
+        pw.print(mProximityVetoes);
+        pw.print(" timeouts=");
+        pw.println(mProximityTimeouts);
+        pw.print(prefix);
+        pw.print("  gesture wakelock held=");
+        pw.print(mGestureWakeLockHeldTime);
+        pw.print("ms launches=");
+        pw.print(mGestureWakeLockLaunches);
+        pw.print(" timeouts=");
+        pw.println(mGestureWakeLockTimeouts);
+        for (KeyStats stats : mKeyStats) {
+            if (stats != null) {
+                stats.dump(prefix + "  ", pw);
+            }
         }
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram. All storage is allocated up front and
+ * {@link #record} doesn't lock, so it can be called from latency
+ * sensitive paths. A dump that races with a record may be off by that
+ * one sample.
+ */
+final class LatencyHistogram {
+
+    // Upper bounds (exclusive) of each bucket in ms, the last bucket is open
+    private static final long[] BUCKET_BOUNDS = {
+        1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048
+    };
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        mCounts.incrementAndGet(bucket);
+        mTotal.incrementAndGet();
+        mSum.addAndGet(millis);
+        long max = mMax.get();
+        while (millis > max && !mMax.compareAndSet(max, millis)) {
+            max = mMax.get();
+        }
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        long total = mTotal.get();
+        pw.print(prefix);
+        pw.print(mName);
+        pw.print(": count=");
+        pw.print(total);
+        if (total == 0) {
+            pw.println();
+            return;
+        }
+        pw.print(" avg=");
+        pw.print(mSum.get() / total);
+        pw.print("ms max=");
+        pw.print(mMax.get());
+        pw.println("ms");
+
+        pw.print(prefix);
+        pw.print("  ");
+        for (int i = 0; i < mCounts.length(); i++) {
+            long count = mCounts.get(i);
+            if (count == 0) {
+                continue;
+            }
+            if (i < BUCKET_BOUNDS.length) {
+                pw.print("<");
+                pw.print(BUCKET_BOUNDS[i]);
+            } else {
+                pw.print(">=");
+                pw.print(BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1]);
+            }
+            pw.print("ms:");
+            pw.print(count);
+            pw.print(" ");
+        }
+        pw.println();
+    }
+}
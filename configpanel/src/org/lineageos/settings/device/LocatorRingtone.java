@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.media.AudioAttributes;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.util.Log;
+
+import org.lineageos.settings.device.utils.Constants;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The sound played by the phone locator. Looking it up among the alarm
+ * tones takes a media provider query per tone, so it's done only once
+ * and the resulting URI is kept in the preferences. Loading and playing
+ * run on a thread of their own, so none of the methods here block the
+ * caller.
+ */
+final class LocatorRingtone {
+
+    private static final String TAG = LocatorRingtone.class.getSimpleName();
+
+    private static final String TITLE = "barium";
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Only written on mExecutor
+    private volatile Ringtone mRingtone;
+    private volatile long mLoadTime = -1;
+    // Set right away, so a toggle doesn't have to wait for the load
+    private volatile boolean mPlayRequested;
+
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+    private final Runnable mPlayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            load();
+            Ringtone ringtone = mRingtone;
+            if (ringtone == null) {
+                // Nothing to play, don't report it as playing forever
+                Log.e(TAG, "Failed to load the locator ringtone");
+                mPlayRequested = false;
+                return;
+            }
+            // Stopped again while loading
+            if (mPlayRequested && !ringtone.isPlaying()) {
+                ringtone.play();
+            }
+        }
+    };
+
+    private final Runnable mStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Ringtone ringtone = mRingtone;
+            if (ringtone != null) {
+                ringtone.stop();
+            }
+        }
+    };
+
+    LocatorRingtone(Context context, SharedPreferences prefs) {
+        mContext = context;
+        mPrefs = prefs;
+    }
+
+    /**
+     * Loads the ringtone in the background, so it can be started without
+     * delay later on.
+     */
+    void preload() {
+        mExecutor.execute(mLoadRunnable);
+    }
+
+    void play() {
+        mPlayRequested = true;
+        mExecutor.execute(mPlayRunnable);
+    }
+
+    void stop() {
+        mPlayRequested = false;
+        mExecutor.execute(mStopRunnable);
+    }
+
+    /**
+     * Returns whether the locator sound was started and hasn't ended yet,
+     * counting a start that still waits for the ringtone to load.
+     */
+    boolean isPlaying() {
+        Ringtone ringtone = mRingtone;
+        return mPlayRequested && (ringtone == null || ringtone.isPlaying());
+    }
+
+    /**
+     * Stops the ringtone, lets queued work finish and ends the thread.
+     * Nothing may be called afterwards.
+     */
+    void release() {
+        stop();
+        mExecutor.shutdown();
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "locatorRingtone="
+                + mPrefs.getString(Constants.OCLICK_LOCATOR_RINGTONE_KEY, null)
+                + " loaded=" + (mRingtone != null) + " loadTime=" + mLoadTime + "ms");
+    }
+
+    private void load() {
+        if (mRingtone != null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Ringtone ringtone = null;
+        String uri = mPrefs.getString(Constants.OCLICK_LOCATOR_RINGTONE_KEY, null);
+        if (uri != null) {
+            ringtone = loadRingtone(Uri.parse(uri));
+            if (ringtone == null) {
+                Log.w(TAG, "Stored locator ringtone " + uri + " is gone");
+            }
+        }
+        if (ringtone == null) {
+            Uri resolved = resolve();
+            mPrefs.edit().putString(Constants.OCLICK_LOCATOR_RINGTONE_KEY,
+                    resolved.toString()).apply();
+            ringtone = loadRingtone(resolved);
+        }
+        mLoadTime = (System.nanoTime() - start) / 1000000;
+        mRingtone = ringtone;
+    }
+
+    /**
+     * Walks the alarm tones for the locator sound, falling back to the
+     * default alarm. Titles come straight from the cursor, which avoids
+     * a query per tone.
+     */
+    private Uri resolve() {
+        RingtoneManager ringtoneManager = new RingtoneManager(mContext);
+        ringtoneManager.setType(RingtoneManager.TYPE_ALARM);
+        Cursor cursor = ringtoneManager.getCursor();
+        try {
+            while (cursor.moveToNext()) {
+                String title = cursor.getString(RingtoneManager.TITLE_COLUMN_INDEX);
+                if (title != null && title.toLowerCase().contains(TITLE)) {
+                    return ringtoneManager.getRingtoneUri(cursor.getPosition());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.w(TAG, "No " + TITLE + " alarm tone, using the default alarm");
+        return RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
+    }
+
+    private Ringtone loadRingtone(Uri uri) {
+        Ringtone ringtone = RingtoneManager.getRingtone(mContext, uri);
+        if (ringtone != null) {
+            ringtone.setAudioAttributes(new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_ALARM)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                    .build());
+        }
+        return ringtone;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encoder and decoder for the frames described by {@link Oclick2Constants}.
+ *
+ * Frames are encoded into and decoded from caller owned buffers, and
+ * decoded frames are stored in a reusable {@link Message}, so neither
+ * direction allocates. Malformed frames are reported through a
+ * {@link Result} instead of exceptions.
+ */
+final class Oclick2Codec {
+
+    /** Largest frame that fits into a single write with the default ATT MTU. */
+    static final int MAX_FRAME_SIZE = 20;
+
+    private static final int HEADER_SIZE = 2;
+
+    enum Result {
+        OK,
+        // Shorter than a header
+        TOO_SHORT,
+        UNKNOWN_CLASS,
+        UNKNOWN_TYPE,
+        // Payload size doesn't match the class and type
+        BAD_LENGTH
+    }
+
+    /**
+     * A decoded frame. Only the fields belonging to the message class
+     * are valid, the others keep whatever an earlier frame left there.
+     */
+    static final class Message {
+        int msgClass;
+        int type;
+        // Whether the frame has a payload, queries have none
+        boolean hasPayload;
+
+        // MSG_CLASS_CALL, MSG_CLASS_MESSAGE
+        int count;
+        // MSG_CLASS_LED
+        int colors;
+        // MSG_CLASS_KEY
+        int keyCode;
+        int keyType;
+        // MSG_CLASS_CONNECTION
+        int minInterval;
+        int maxInterval;
+        int latency;
+        int supervisionTimeout;
+        // MSG_CLASS_LINKLOSE
+        int level;
+        // MSG_CLASS_RSSI
+        int reportInterval;
+        int rssi;
+    }
+
+    private Oclick2Codec() {
+    }
+
+    static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocate(MAX_FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns a key identifying the class and type of an encoded frame,
+     * e.g. to replace a queued frame that hasn't been sent yet.
+     */
+    static int getMergeKey(ByteBuffer frame) {
+        int pos = frame.position();
+        return (frame.get(pos) & 0xff) << 8 | (frame.get(pos + 1) & 0xff);
+    }
+
+    static ByteBuffer encodeKey(ByteBuffer dst, int keyCode, int keyType) {
+        return finish(header(dst, Oclick2Constants.MSG_CLASS_KEY, 0)
+                .put((byte) ((keyCode & Oclick2Constants.KEYCODE_MASK)
+                        | (keyType & Oclick2Constants.KEYTYPE_MASK))));
+    }
+
+    static ByteBuffer encodeConnectionQuery(ByteBuffer dst) {
+        return finish(header(dst, Oclick2Constants.MSG_CLASS_CONNECTION,
+                Oclick2Constants.MSG_TYPE_CONNECTION_GET_PARAMS));
+    }
+
+    static ByteBuffer encodeConnectionParams(ByteBuffer dst, int type, int minInterval,
+            int maxInterval, int latency, int supervisionTimeout) {
+        checkType(type, Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS);
+        return finish(header(dst, Oclick2Constants.MSG_CLASS_CONNECTION, type)
+                .putShort((short) minInterval)
+                .putShort((short) maxInterval)
+                .putShort((short) latency)
+                .putShort((short) supervisionTimeout));
+    }
+
+    static ByteBuffer encodeLinkLossLevel(ByteBuffer dst, int type, int level) {
+        checkType(type, Oclick2Constants.MSG_TYPE_LINKLOSE_SET_LEVEL);
+        return finish(header(dst, Oclick2Constants.MSG_CLASS_LINKLOSE, type).put((byte) level));
+    }
+
+    static ByteBuffer encodeRssiReportInterval(ByteBuffer dst, int type, int seconds) {
+        checkType(type, Oclick2Constants.MSG_TYPE_RSSI_READ_RATE_SET);
+        return finish(header(dst, Oclick2Constants.MSG_CLASS_RSSI, type).put((byte) seconds));
+    }
+
+    static ByteBuffer encodeRssi(ByteBuffer dst, int rssi) {
+        return finish(header(dst, Oclick2Constants.MSG_CLASS_RSSI,
+                Oclick2Constants.MSG_TYPE_RSSI_GET).put((byte) rssi));
+    }
+
+    /**
+     * Decodes the frame between the position and the limit of the buffer,
+     * without moving either of them.
+     */
+    static Result decode(ByteBuffer src, Message out) {
+        int pos = src.position();
+        int length = src.remaining() - HEADER_SIZE;
+        if (length < 0) {
+            return Result.TOO_SHORT;
+        }
+
+        int msgClass = src.get(pos) & 0xff;
+        int type = src.get(pos + 1) & 0xff;
+        int payload = pos + HEADER_SIZE;
+        out.msgClass = msgClass;
+        out.type = type;
+        out.hasPayload = length > 0;
+
+        switch (msgClass) {
+            case Oclick2Constants.MSG_CLASS_CALL:
+            case Oclick2Constants.MSG_CLASS_MESSAGE:
+                int maxType = msgClass == Oclick2Constants.MSG_CLASS_CALL
+                        ? Oclick2Constants.MSG_TYPE_CALL_SET_READ
+                        : Oclick2Constants.MSG_TYPE_MESSAGE_READ;
+                if (type < 1 || type > maxType) {
+                    return Result.UNKNOWN_TYPE;
+                }
+                if (length != 2) {
+                    return Result.BAD_LENGTH;
+                }
+                out.count = getUint16(src, payload);
+                return Result.OK;
+
+            case Oclick2Constants.MSG_CLASS_LED:
+                if (type < 1 || type > Oclick2Constants.MSG_TYPE_LED_OFF) {
+                    return Result.UNKNOWN_TYPE;
+                }
+                if (length != 1) {
+                    return Result.BAD_LENGTH;
+                }
+                out.colors = src.get(payload) & 0xff;
+                return Result.OK;
+
+            case Oclick2Constants.MSG_CLASS_KEY:
+                if (length != 1) {
+                    return Result.BAD_LENGTH;
+                }
+                out.keyCode = src.get(payload) & Oclick2Constants.KEYCODE_MASK;
+                out.keyType = src.get(payload) & Oclick2Constants.KEYTYPE_MASK;
+                return Result.OK;
+
+            case Oclick2Constants.MSG_CLASS_CONNECTION:
+                if (type < 1 || type > Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS) {
+                    return Result.UNKNOWN_TYPE;
+                }
+                if (length == 0 && type == Oclick2Constants.MSG_TYPE_CONNECTION_GET_PARAMS) {
+                    return Result.OK;
+                }
+                if (length != 8) {
+                    return Result.BAD_LENGTH;
+                }
+                out.minInterval = getUint16(src, payload);
+                out.maxInterval = getUint16(src, payload + 2);
+                out.latency = getUint16(src, payload + 4);
+                out.supervisionTimeout = getUint16(src, payload + 6);
+                return Result.OK;
+
+            case Oclick2Constants.MSG_CLASS_LINKLOSE:
+                if (type < 1 || type > Oclick2Constants.MSG_TYPE_LINKLOSE_SET_LEVEL) {
+                    return Result.UNKNOWN_TYPE;
+                }
+                if (length == 0 && type == Oclick2Constants.MSG_TYPE_LINKLOSE_GET_LEVEL) {
+                    return Result.OK;
+                }
+                if (length != 1) {
+                    return Result.BAD_LENGTH;
+                }
+                out.level = src.get(payload) & 0xff;
+                return Result.OK;
+
+            case Oclick2Constants.MSG_CLASS_RSSI:
+                if (type < 1 || type > Oclick2Constants.MSG_TYPE_RSSI_GET) {
+                    return Result.UNKNOWN_TYPE;
+                }
+                if (length == 0 && type != Oclick2Constants.MSG_TYPE_RSSI_READ_RATE_SET) {
+                    return Result.OK;
+                }
+                if (length != 1) {
+                    return Result.BAD_LENGTH;
+                }
+                if (type == Oclick2Constants.MSG_TYPE_RSSI_GET) {
+                    out.rssi = src.get(payload);
+                } else {
+                    out.reportInterval = src.get(payload) & 0xff;
+                }
+                return Result.OK;
+
+            default:
+                return Result.UNKNOWN_CLASS;
+        }
+    }
+
+    private static ByteBuffer header(ByteBuffer dst, int msgClass, int type) {
+        dst.clear();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        return dst.put((byte) msgClass).put((byte) type);
+    }
+
+    private static ByteBuffer finish(ByteBuffer dst) {
+        dst.flip();
+        return dst;
+    }
+
+    private static void checkType(int type, int maxType) {
+        if (type < 1 || type > maxType) {
+            throw new IllegalArgumentException("Invalid type " + type);
+        }
+    }
+
+    private static int getUint16(ByteBuffer src, int index) {
+        return (src.get(index) & 0xff) | (src.get(index + 1) & 0xff) << 8;
+    }
+}
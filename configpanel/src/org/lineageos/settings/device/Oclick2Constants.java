@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+/**
+ * Message classes and types of the O-Click 2 key characteristic protocol.
+ * Every frame starts with the message class and type, followed by the
+ * payload described below. Multi-byte integers are little endian.
+ */
+final class Oclick2Constants {
+
+    static final int MSG_CLASS_CALL = 1;
+    static final int MSG_CLASS_MESSAGE = 2;
+    static final int MSG_CLASS_LED = 3;
+    static final int MSG_CLASS_KEY = 5;
+    static final int MSG_CLASS_CONNECTION = 7;
+    static final int MSG_CLASS_LINKLOSE = 8;
+    static final int MSG_CLASS_RSSI = 11;
+
+    /* payload: count (16 bit integer) */
+    static final int MSG_TYPE_CALL_SET_INCOMING = 1;
+    static final int MSG_TYPE_CALL_SET_MISSED = 2;
+    static final int MSG_TYPE_CALL_SET_READ = 3;
+
+    /* payload: count (16 bit integer) */
+    static final int MSG_TYPE_MESSAGE_UNREAD = 1;
+    static final int MSG_TYPE_MESSAGE_READ = 2;
+
+    /* payload: color bitmask (1 byte, white = 1, red = 2, green = 4, blue = 8) */
+    static final int MSG_TYPE_LED_ON = 1;
+    static final int MSG_TYPE_LED_FLASH = 2;
+    static final int MSG_TYPE_LED_OFF = 3;
+
+    /* payload:
+     * CONNECTION_INTERVAL_MIN (16 bit integer),
+     * CONNECTION_INTERVAL_MAX (16 bit integer),
+     * CONNECTION_LATENCY (16 bit integer),
+     * SUPERVISION_TIMEOUT (16 bit integer)
+     * Requests sent to query the parameters have no payload.
+     */
+    static final int MSG_TYPE_CONNECTION_GET_PARAMS = 1;
+    static final int MSG_TYPE_CONNECTION_SET_PARAMS = 2;
+
+    /* payload: level (1 byte, off = 0, on = 1) */
+    static final int MSG_TYPE_LINKLOSE_GET_LEVEL = 1;
+    static final int MSG_TYPE_LINKLOSE_SET_LEVEL = 2;
+
+    /* Only the class and type ids below are known, the payloads aren't
+     * part of any documented O-Click protocol. They are modeled after the
+     * link loss level: one byte for the report interval in seconds
+     * (off = 0), one signed byte for the rssi in dBm. Tags that don't
+     * report this way are polled instead.
+     */
+    static final int MSG_TYPE_RSSI_READ_RATE_GET = 1;
+    static final int MSG_TYPE_RSSI_READ_RATE_SET = 2;
+    static final int MSG_TYPE_RSSI_GET = 3;
+
+    /* MSG_CLASS_KEY frames carry no meaningful type,
+     * payload: key code | key type (1 byte)
+     */
+    static final int KEYCODE_MIDDLE = 0x10;
+    static final int KEYCODE_UP = 0x20;
+    static final int KEYCODE_RIGHT = 0x30;
+    static final int KEYCODE_DOWN = 0x40;
+    static final int KEYCODE_LEFT = 0x50;
+    static final int KEYCODE_MASK = 0xf0;
+
+    static final int KEYTYPE_LONG_RELEASE = 0;
+    static final int KEYTYPE_SHORT = 1;
+    static final int KEYTYPE_DOUBLE = 2;
+    static final int KEYTYPE_LONG_PRESS = 3;
+    static final int KEYTYPE_MASK = 0xf;
+
+    private Oclick2Constants() {
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright (C) 2015 The CyanogenMod Project
+ * Copyright (C) 2017-2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Connection to a single O-Click. Owns the GATT connection along with
+ * everything tied to it: the operation queue, the reconnect schedule, the
+ * RSSI fence and the tap recognizer. All connections of the service share
+ * the looper they run their timers on.
+ */
+final class OclickConnection {
+
+    private static final String TAG = OclickConnection.class.getSimpleName();
+
+    static final UUID TRIGGER_SERVICE_UUID =
+            UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
+    static final UUID TRIGGER_CHARACTERISTIC_V1_UUID =
+            UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
+    static final UUID TRIGGER_CHARACTERISTIC_V2_UUID =
+            UUID.fromString("f000ffe1-0451-4000-b000-000000000000");
+
+    static final UUID OCLICK2_SERVICE_UUID =
+            UUID.fromString("00002200-0000-1000-8000-00805f9b34fb");
+    static final UUID OCLICK2_KEY_CHARACTERISTIC_UUID =
+            UUID.fromString("00002201-0000-1000-8000-00805f9b34fb");
+
+    static final UUID IMMEDIATE_ALERT_SERVICE_UUID =
+            UUID.fromString("00001802-0000-1000-8000-00805f9b34fb"); //0-2
+    static final UUID IMMEDIATE_ALERT_CHARACTERISTIC_UUID =
+            UUID.fromString("00002a06-0000-1000-8000-00805f9b34fb");
+
+    static final UUID LINK_LOSS_SERVICE_UUID =
+            UUID.fromString("00001803-0000-1000-8000-00805f9b34fb"); //0-3
+    static final UUID LINK_LOSS_CHARACTERISTIC_UUID =
+            UUID.fromString("00002a06-0000-1000-8000-00805f9b34fb");
+
+    // Missed RSSI reports after which we assume the O-Click 2 doesn't push them
+    private static final int RSSI_REPORT_MISSES = 3;
+    // RSSI report intervals in seconds. The fence asks for a new poll interval
+    // on every sample, switching between a few levels keeps noise from
+    // rewriting the report interval all the time.
+    private static final int[] RSSI_REPORT_INTERVALS = { 2, 5, 10, 30 };
+    // How far (in percent) the fence has to ask beyond a longer level to get it
+    private static final int RSSI_REPORT_HYSTERESIS = 25;
+    // Report interval until the fence has a sample, the old polling interval
+    private static final int RSSI_REPORT_INITIAL_INTERVAL = 10;
+
+    private static final int MSG_SINGLE_TAP_TIMEOUT = 1;
+    private static final int MSG_POLL_RSSI = 2;
+    private static final int MSG_RSSI_REPORT_TIMEOUT = 3;
+
+    enum ConnectionState {
+        INIT,
+        CONNECTED,
+        RECONNECTING
+    };
+
+    /*
+     * O-Click 2 connection parameters, in the units of the Bluetooth core
+     * spec that MSG_CLASS_CONNECTION passes on: intervals in 1.25 ms (valid
+     * 6-3200), latency in skipped connection events (0-499) and the
+     * supervision timeout in 10 ms (10-3200). The timeout has to exceed
+     * (1 + latency) * maxInterval * 2, or the link drops while idle.
+     */
+    enum ConnectionProfile {
+        // Camera in use, shutter presses should arrive right away:
+        // 20-40 ms, 4 s timeout
+        LOW_LATENCY(16, 32, 0, 400),
+        // 250-500 ms, 10 s timeout
+        BALANCED(200, 400, 1, 1000),
+        // Screen off, only the fence and the locator matter:
+        // 500-1000 ms, 8 s timeout
+        LOW_POWER(400, 800, 1, 800);
+
+        final int minInterval;
+        final int maxInterval;
+        final int latency;
+        final int supervisionTimeout;
+
+        ConnectionProfile(int minInterval, int maxInterval, int latency,
+                int supervisionTimeout) {
+            this.minInterval = minInterval;
+            this.maxInterval = maxInterval;
+            this.latency = latency;
+            this.supervisionTimeout = supervisionTimeout;
+        }
+    };
+
+    // Called on the looper
+    interface Listener {
+        void onConnectionStateChanged(OclickConnection connection);
+        // Single tap on an O-Click 1, short press of the middle key on an O-Click 2
+        void onShutter(OclickConnection connection);
+        // Double tap on an O-Click 1, double press of the middle key on an O-Click 2
+        void onLocatorToggle(OclickConnection connection);
+        // Any O-Click 2 key event
+        void onKey(OclickConnection connection, int key, int action);
+    }
+
+    private final String mAddress;
+    // mAddress as stored in the event log
+    private final long mDevice;
+    private final OclickEventLog mEventLog;
+    private final GattTransport.Factory mTransportFactory;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final GattOperationQueue mGattQueue;
+    private final ReconnectScheduler mReconnectScheduler;
+    private final TapRecognizer mTapRecognizer;
+    private final RssiFence mRssiFence = new RssiFence();
+
+    private GattTransport mTransport;
+    private ConnectionState mConnectionState = ConnectionState.INIT;
+    private boolean mServicesDiscovered;
+    private boolean mIsOclick2;
+    private boolean mRssiReportSupported;
+    private int mRssiReportInterval;
+    private ConnectionProfile mConnectionProfile = ConnectionProfile.BALANCED;
+    private ConnectionProfile mAppliedProfile;
+    private String mNegotiatedParams;
+    private boolean mAlerting;
+    private boolean mRssiAlertEnabled;
+    private boolean mDisconnectAlertEnabled;
+
+    private final Oclick2Codec.Message mMessage = new Oclick2Codec.Message();
+    private final ByteBuffer mEncodeBuffer = Oclick2Codec.allocateBuffer();
+    private final GattEventRing mEventRing;
+
+    private final class ConnectionHandler extends Handler {
+        ConnectionHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SINGLE_TAP_TIMEOUT:
+                    mTapRecognizer.onTimeout();
+                    break;
+                case MSG_POLL_RSSI:
+                    mGattQueue.readRemoteRssi();
+                    break;
+                case MSG_RSSI_REPORT_TIMEOUT:
+                    Log.d(TAG, mAddress + ": no RSSI reports received, falling back to polling");
+                    mRssiReportSupported = false;
+                    toggleRssiListener();
+                    break;
+            }
+        }
+    }
+
+    // Runs on the looper, GATT callbacks are handed over by mEventRing
+    private final GattTransport.Callback mTransportCallback = new GattTransport.Callback() {
+        @Override
+        public void onConnectionStateChange(GattTransport transport, int status,
+                int newState) {
+            Log.d(TAG, mAddress + ": onConnectionStateChange " + status + " " + newState);
+            if (transport != mTransport) {
+                // Closed or replaced in the meantime
+                return;
+            }
+            mEventLog.record(OclickEventLog.TYPE_CONNECTION_STATE, mDevice, status, newState);
+            if (newState == GattTransport.STATE_CONNECTED) {
+                mConnectionState = ConnectionState.CONNECTED;
+                mReconnectScheduler.onConnected();
+                transport.discoverServices();
+            } else if (newState == GattTransport.STATE_DISCONNECTED) {
+                mGattQueue.setTransport(null);
+                transport.close();
+                mTransport = null;
+                mServicesDiscovered = false;
+                mIsOclick2 = false;
+                mAppliedProfile = null;
+                mHandler.removeMessages(MSG_POLL_RSSI);
+                mHandler.removeMessages(MSG_RSSI_REPORT_TIMEOUT);
+                // A pending tap must not turn into a single tap after the fact
+                mHandler.removeMessages(MSG_SINGLE_TAP_TIMEOUT);
+                mTapRecognizer.reset();
+                mReconnectScheduler.onDisconnected();
+                mConnectionState = ConnectionState.RECONNECTING;
+            }
+            mListener.onConnectionStateChanged(OclickConnection.this);
+        }
+
+        @Override
+        public void onServicesDiscovered(GattTransport transport, int status) {
+            Log.d(TAG, mAddress + ": onServicesDiscovered " + status);
+            if (transport != mTransport) {
+                return;
+            }
+
+            boolean isOclick2 = transport.hasCharacteristic(OCLICK2_SERVICE_UUID,
+                    OCLICK2_KEY_CHARACTERISTIC_UUID);
+            mEventLog.record(OclickEventLog.TYPE_SERVICES_DISCOVERED, mDevice, status,
+                    isOclick2 ? 1 : 0);
+            if (isOclick2) {
+                // O-Click 2.0 mode
+                transport.setCharacteristicNotification(OCLICK2_SERVICE_UUID,
+                        OCLICK2_KEY_CHARACTERISTIC_UUID, true);
+                mIsOclick2 = true;
+                mRssiReportSupported = true;
+                mRssiReportInterval = 0;
+                mAppliedProfile = null;
+                applyConnectionProfile();
+            } else {
+                // Register trigger notification (Used for camera/alarm)
+                UUID trigger = TRIGGER_CHARACTERISTIC_V1_UUID;
+                if (!transport.hasCharacteristic(TRIGGER_SERVICE_UUID, trigger)) {
+                    trigger = TRIGGER_CHARACTERISTIC_V2_UUID;
+                }
+                transport.setCharacteristicNotification(TRIGGER_SERVICE_UUID, trigger, true);
+            }
+
+            // The queue issues these one after another
+            mServicesDiscovered = true;
+            updateLinkLossState();
+            mRssiFence.reset();
+            mAlerting = false;
+            updateAlertState(false);
+
+            toggleRssiListener();
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattTransport transport, UUID service,
+                UUID characteristic, int status) {
+            Log.d(TAG, mAddress + ": onCharacteristicWrite: service UUID " + service
+                    + " status " + status);
+            if (transport != mTransport) {
+                // Must not complete an operation of the new connection
+                return;
+            }
+            mEventLog.record(OclickEventLog.TYPE_WRITE, mDevice, status,
+                    (int) (characteristic.getMostSignificantBits() >>> 32));
+            mGattQueue.onCharacteristicWrite(service, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattTransport transport, UUID service,
+                UUID characteristic, ByteBuffer value) {
+            Log.d(TAG, mAddress + ": characteristic changed " + characteristic);
+
+            if (characteristic.equals(OCLICK2_KEY_CHARACTERISTIC_UUID)) {
+                onOclick2Frame(value);
+            } else {
+                long delay = mTapRecognizer.onTap(SystemClock.uptimeMillis());
+                mHandler.removeMessages(MSG_SINGLE_TAP_TIMEOUT);
+                if (delay >= 0) {
+                    mHandler.sendEmptyMessageDelayed(MSG_SINGLE_TAP_TIMEOUT, delay);
+                }
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(GattTransport transport, int rssi, int status) {
+            Log.d(TAG, mAddress + ": rssi value : " + rssi);
+            if (transport != mTransport) {
+                return;
+            }
+            mGattQueue.onReadRemoteRssi(status);
+            // A failed read is retried by the queue, which reports it if it
+            // gives up, so each poll schedules exactly one more
+            if (status == GattTransport.GATT_SUCCESS) {
+                onRssiSample(rssi);
+                scheduleRssiPoll();
+            }
+        }
+    };
+
+    OclickConnection(String address, GattTransport.Factory transportFactory, Looper looper,
+            OclickEventLog eventLog, Listener listener) {
+        mAddress = address;
+        mDevice = OclickEventLog.parseAddress(address);
+        mEventLog = eventLog;
+        mTransportFactory = transportFactory;
+        mListener = listener;
+        mHandler = new ConnectionHandler(looper);
+        mEventRing = new GattEventRing(mHandler, mTransportCallback);
+        mGattQueue = new GattOperationQueue(mHandler, new GattOperationQueue.Callback() {
+            @Override
+            public void onReadRemoteRssiDropped() {
+                // Keep polling, the next read may well succeed
+                scheduleRssiPoll();
+            }
+        });
+        mReconnectScheduler = new ReconnectScheduler(mHandler, new ReconnectScheduler.Callback() {
+            @Override
+            public void onReconnect(boolean autoConnect) {
+                connectGatt(autoConnect);
+            }
+        });
+        mTapRecognizer = new TapRecognizer(new TapRecognizer.Listener() {
+            @Override
+            public void onSingleTap() {
+                mListener.onShutter(OclickConnection.this);
+            }
+
+            @Override
+            public void onDoubleTap() {
+                mListener.onLocatorToggle(OclickConnection.this);
+            }
+        });
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    ConnectionState getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * Connects to the device, or retries right away if the connection was
+     * lost before.
+     */
+    void connect() {
+        if (mConnectionState == ConnectionState.INIT) {
+            if (mTransport == null) {
+                connectGatt(false);
+            }
+        } else {
+            retryReconnect();
+        }
+    }
+
+    /**
+     * Skips the backoff or the background connection, e.g. because the
+     * user is likely about to use the device.
+     */
+    void retryReconnect() {
+        if (mConnectionState != ConnectionState.RECONNECTING) {
+            return;
+        }
+        // Don't interrupt a direct connection attempt that is still running
+        if (mTransport == null || mReconnectScheduler.isAutoConnectPending()) {
+            mReconnectScheduler.retryNow();
+        }
+    }
+
+    void close() {
+        mHandler.removeCallbacksAndMessages(null);
+        mReconnectScheduler.cancel();
+        mGattQueue.clear();
+        if (mTransport != null) {
+            GattTransport transport = mTransport;
+            mTransport = null;
+            mServicesDiscovered = false;
+            transport.disconnect();
+            transport.close();
+        }
+    }
+
+    void setRssiAlertEnabled(boolean enabled) {
+        mRssiAlertEnabled = enabled;
+        if (mServicesDiscovered) {
+            toggleRssiListener();
+        }
+    }
+
+    void setDisconnectAlertEnabled(boolean enabled) {
+        mDisconnectAlertEnabled = enabled;
+        if (mServicesDiscovered) {
+            updateLinkLossState();
+        }
+    }
+
+    void setInstantSingle(boolean instantSingle) {
+        mHandler.removeMessages(MSG_SINGLE_TAP_TIMEOUT);
+        mTapRecognizer.setInstantSingle(instantSingle);
+    }
+
+    void setConnectionProfile(ConnectionProfile profile) {
+        mConnectionProfile = profile;
+        applyConnectionProfile();
+    }
+
+    private void connectGatt(boolean autoConnect) {
+        if (mTransport != null) {
+            if (mConnectionState == ConnectionState.CONNECTED) {
+                return;
+            }
+            // Replace the pending connection attempt
+            mGattQueue.setTransport(null);
+            mTransport.close();
+            mServicesDiscovered = false;
+        }
+        Log.d(TAG, "Connecting to device " + mAddress + " autoConnect " + autoConnect);
+        mEventLog.record(OclickEventLog.TYPE_CONNECT, mDevice, 0, autoConnect ? 1 : 0);
+        mTransport = mTransportFactory.connect(autoConnect, mEventRing);
+        mGattQueue.setTransport(mTransport);
+    }
+
+    private void toggleRssiListener() {
+        mHandler.removeMessages(MSG_POLL_RSSI);
+        mHandler.removeMessages(MSG_RSSI_REPORT_TIMEOUT);
+        if (mIsOclick2 && mRssiReportSupported) {
+            // Let the O-Click 2 push its RSSI instead of polling it
+            setRssiReportInterval(mRssiAlertEnabled ? RSSI_REPORT_INITIAL_INTERVAL : 0);
+        } else if (mRssiAlertEnabled) {
+            Log.d(TAG, mAddress + ": enabling rssi listener");
+            mHandler.sendEmptyMessage(MSG_POLL_RSSI);
+        }
+    }
+
+    private void scheduleRssiPoll() {
+        mHandler.removeMessages(MSG_POLL_RSSI);
+        if (mRssiAlertEnabled && !isRssiReportActive()) {
+            mHandler.sendEmptyMessageDelayed(MSG_POLL_RSSI, mRssiFence.getPollInterval());
+        }
+    }
+
+    private boolean isRssiReportActive() {
+        return mIsOclick2 && mRssiReportSupported;
+    }
+
+    private void setRssiReportInterval(int seconds) {
+        mHandler.removeMessages(MSG_RSSI_REPORT_TIMEOUT);
+        if (seconds > 0) {
+            mHandler.sendEmptyMessageDelayed(MSG_RSSI_REPORT_TIMEOUT,
+                    seconds * 1000L * RSSI_REPORT_MISSES);
+        }
+        if (seconds == mRssiReportInterval) {
+            return;
+        }
+        mRssiReportInterval = seconds;
+        writeOclick2Frame(Oclick2Codec.encodeRssiReportInterval(mEncodeBuffer,
+                Oclick2Constants.MSG_TYPE_RSSI_READ_RATE_SET, seconds));
+    }
+
+    private void onRssiReport(int rssi) {
+        if (!mRssiAlertEnabled || !isRssiReportActive()) {
+            return;
+        }
+        onRssiSample(rssi);
+        // Follow the interval the fence asks for, like polling does
+        setRssiReportInterval(getRssiReportLevel(mRssiFence.getPollInterval()));
+    }
+
+    /**
+     * Rounds the poll interval down to one of RSSI_REPORT_INTERVALS. Shorter
+     * intervals than the current one are taken right away, longer ones only
+     * once the poll interval clearly exceeds them.
+     */
+    private int getRssiReportLevel(long pollInterval) {
+        int level = RSSI_REPORT_INTERVALS[0];
+        for (int interval : RSSI_REPORT_INTERVALS) {
+            long threshold = interval * 1000L;
+            if (interval > mRssiReportInterval) {
+                // The fence never asks for more than its maximum
+                threshold = Math.min(threshold + threshold * RSSI_REPORT_HYSTERESIS / 100,
+                        RssiFence.MAX_POLL_INTERVAL);
+            }
+            if (pollInterval >= threshold) {
+                level = interval;
+            }
+        }
+        return level;
+    }
+
+    private void applyConnectionProfile() {
+        ConnectionProfile profile = mConnectionProfile;
+        if (!mIsOclick2 || profile == mAppliedProfile) {
+            return;
+        }
+
+        Log.d(TAG, mAddress + ": switching to connection profile " + profile);
+        mAppliedProfile = profile;
+        writeOclick2Frame(Oclick2Codec.encodeConnectionParams(mEncodeBuffer,
+                Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS, profile.minInterval,
+                profile.maxInterval, profile.latency, profile.supervisionTimeout));
+
+        // Read back what was actually negotiated
+        writeOclick2Frame(Oclick2Codec.encodeConnectionQuery(mEncodeBuffer));
+    }
+
+    private void writeOclick2Frame(ByteBuffer frame) {
+        int mergeKey = Oclick2Codec.getMergeKey(frame);
+        // The value is kept until the write goes out, so it can't be shared
+        byte[] value = new byte[frame.remaining()];
+        frame.get(value);
+        mGattQueue.writeCharacteristic(OCLICK2_SERVICE_UUID, OCLICK2_KEY_CHARACTERISTIC_UUID,
+                value, mergeKey);
+    }
+
+    private void onOclick2Frame(ByteBuffer value) {
+        Oclick2Codec.Result result = Oclick2Codec.decode(value, mMessage);
+        if (result != Oclick2Codec.Result.OK) {
+            Log.w(TAG, "Dropping O-Click 2 frame: " + result);
+            return;
+        }
+
+        switch (mMessage.msgClass) {
+            case Oclick2Constants.MSG_CLASS_RSSI:
+                if (mMessage.type == Oclick2Constants.MSG_TYPE_RSSI_GET && mMessage.hasPayload) {
+                    onRssiReport(mMessage.rssi);
+                }
+                break;
+            case Oclick2Constants.MSG_CLASS_CONNECTION:
+                if (mMessage.type == Oclick2Constants.MSG_TYPE_CONNECTION_GET_PARAMS
+                        && mMessage.hasPayload) {
+                    onConnectionParams(mMessage);
+                }
+                break;
+            case Oclick2Constants.MSG_CLASS_KEY:
+                onOclick2Key(mMessage.keyCode, mMessage.keyType);
+                break;
+        }
+    }
+
+    private void onOclick2Key(int key, int action) {
+        if (key == Oclick2Constants.KEYCODE_MIDDLE) {
+            if (action == Oclick2Constants.KEYTYPE_DOUBLE) {
+                mListener.onLocatorToggle(this);
+            } else if (action == Oclick2Constants.KEYTYPE_SHORT) {
+                mListener.onShutter(this);
+            }
+        }
+        mListener.onKey(this, key, action);
+    }
+
+    private void onConnectionParams(Oclick2Codec.Message params) {
+        int minInterval = params.minInterval;
+        int maxInterval = params.maxInterval;
+        int latency = params.latency;
+        int supervisionTimeout = params.supervisionTimeout;
+        mNegotiatedParams = "interval " + minInterval + "-" + maxInterval
+                + " latency " + latency + " timeout " + supervisionTimeout;
+
+        ConnectionProfile profile = mAppliedProfile;
+        if (profile != null && (minInterval != profile.minInterval
+                || maxInterval != profile.maxInterval || latency != profile.latency
+                || supervisionTimeout != profile.supervisionTimeout)) {
+            Log.w(TAG, mAddress + ": connection profile " + profile + " not applied, got "
+                    + mNegotiatedParams);
+        } else {
+            Log.d(TAG, mAddress + ": connection parameters: " + mNegotiatedParams);
+        }
+    }
+
+    private void onRssiSample(int rssi) {
+        mEventLog.record(OclickEventLog.TYPE_RSSI, mDevice, 0, rssi);
+        if (mRssiFence.addSample(rssi)) {
+            mAlerting = mRssiFence.isAlerting();
+            mEventLog.record(OclickEventLog.TYPE_FENCE, mDevice, 0, mAlerting ? 1 : 0);
+            updateAlertState(mAlerting);
+        }
+    }
+
+    private void updateAlertState(boolean doAlert) {
+        mGattQueue.writeCharacteristic(IMMEDIATE_ALERT_SERVICE_UUID,
+                IMMEDIATE_ALERT_CHARACTERISTIC_UUID,
+                new byte[] { (byte) (doAlert ? 2 : 0) }, 0);
+    }
+
+    private void updateLinkLossState() {
+        mGattQueue.writeCharacteristic(LINK_LOSS_SERVICE_UUID, LINK_LOSS_CHARACTERISTIC_UUID,
+                new byte[] { (byte) (mDisconnectAlertEnabled ? 2 : 0) }, 0);
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "device=" + mAddress);
+        prefix += "  ";
+        pw.println(prefix + "connectionState=" + mConnectionState);
+        mReconnectScheduler.dump(prefix, pw);
+        mTapRecognizer.dump(prefix, pw);
+        mEventRing.dump(prefix, pw);
+        pw.println(prefix + "rssi=" + mRssiFence.getSmoothedRssi() + " alerting=" + mAlerting);
+        pw.println(prefix + "connectionProfile=" + mAppliedProfile
+                + " negotiated=" + mNegotiatedParams);
+    }
+}
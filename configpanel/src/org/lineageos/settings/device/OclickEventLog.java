@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connection lifecycle events of all O-Clicks, kept in a fixed-size ring
+ * of binary records in a memory-mapped file. The file lives in device
+ * protected storage, so it's available before the first unlock and
+ * outlives the service. Recording only stores into the mapping and
+ * doesn't allocate. The summary in the dump answers field questions like
+ * how long reconnects take and how often links drop.
+ *
+ * Timestamps are elapsedRealtime() and restart on boot, every time the
+ * log is opened a marker record is written so the summary doesn't pair
+ * events across boots or service restarts.
+ */
+final class OclickEventLog {
+
+    private static final String TAG = OclickEventLog.class.getSimpleName();
+
+    private static final String FILE_NAME = "oclick_events.bin";
+
+    static final int TYPE_LOG_OPENED = 1;
+    // value: autoConnect
+    static final int TYPE_CONNECT = 2;
+    // value: new state
+    static final int TYPE_CONNECTION_STATE = 3;
+    // value: 1 for an O-Click 2
+    static final int TYPE_SERVICES_DISCOVERED = 4;
+    // value: 16 bit UUID of the characteristic
+    static final int TYPE_WRITE = 5;
+    // value: RSSI in dBm
+    static final int TYPE_RSSI = 6;
+    // value: 1 when the fence started alerting
+    static final int TYPE_FENCE = 7;
+
+    /*
+     * Header: magic, version, record size, capacity, records written.
+     * Record: timestamp (long), device address (long), type (short),
+     * status (short), value (int).
+     */
+    private static final int MAGIC = 0x4f434c4b;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int WRITTEN_OFFSET = 16;
+    private static final int RECORD_SIZE = 24;
+    private static final int CAPACITY = 4096;
+
+    private final MappedByteBuffer mBuffer;
+
+    private OclickEventLog(MappedByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Opens the log, starting over if the file is missing or has a
+     * different layout. Returns a log that drops all records when the
+     * file can't be mapped.
+     */
+    static OclickEventLog open(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        MappedByteBuffer buffer = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) CAPACITY * RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(8) != RECORD_SIZE || buffer.getInt(12) != CAPACITY) {
+                Log.i(TAG, "Starting a new event log");
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, RECORD_SIZE);
+                buffer.putInt(12, CAPACITY);
+                buffer.putLong(WRITTEN_OFFSET, 0);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to map " + file, e);
+            buffer = null;
+        }
+
+        OclickEventLog log = new OclickEventLog(buffer);
+        log.record(TYPE_LOG_OPENED, 0, 0, 0);
+        return log;
+    }
+
+    /**
+     * Returns a Bluetooth address like "00:11:22:AA:BB:CC" as a number.
+     */
+    static long parseAddress(String address) {
+        long result = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                result = result << 4 | digit;
+            }
+        }
+        return result;
+    }
+
+    synchronized void record(int type, long device, int status, int value) {
+        if (mBuffer == null) {
+            return;
+        }
+        long written = mBuffer.getLong(WRITTEN_OFFSET);
+        int offset = HEADER_SIZE + (int) (written % CAPACITY) * RECORD_SIZE;
+        mBuffer.putLong(offset, SystemClock.elapsedRealtime());
+        mBuffer.putLong(offset + 8, device);
+        mBuffer.putShort(offset + 16, (short) type);
+        mBuffer.putShort(offset + 18, (short) status);
+        mBuffer.putInt(offset + 20, value);
+        // Advanced last, a record torn by a crash is never counted
+        mBuffer.putLong(WRITTEN_OFFSET, written + 1);
+    }
+
+    /**
+     * Writes the mapping back to the file, e.g. before the service goes
+     * away.
+     */
+    synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        if (mBuffer == null) {
+            pw.println(prefix + "eventLog: unavailable");
+            return;
+        }
+        ByteBuffer records = mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long written = mBuffer.getLong(WRITTEN_OFFSET);
+        int count = (int) Math.min(written, CAPACITY);
+        pw.println(prefix + "eventLog: records=" + count + "/" + CAPACITY
+                + " written=" + written);
+        new Summary().summarize(records, written - count, written).dump(prefix + "  ", pw);
+    }
+
+    /**
+     * Pairs the records of each device into durations and counters.
+     */
+    private static final class Summary {
+        private static final int RSSI_BUCKET = 10;
+        private static final int RSSI_MIN = -110;
+        private static final int RSSI_MAX = -30;
+
+        private static final class Device {
+            long connectStart = -1;
+            long connectedAt = -1;
+            long lostAt = -1;
+        }
+
+        private final Map<Long, Device> mDevices = new HashMap<>();
+        private final Samples mConnect = new Samples("time to connect");
+        private final Samples mDiscover = new Samples("time to discover");
+        private final Samples mOutage = new Samples("link loss to reconnect");
+        private final int[] mRssi = new int[(RSSI_MAX - RSSI_MIN) / RSSI_BUCKET + 2];
+        private long mConnectedTime;
+        private int mDisconnects;
+        private int mFailedConnects;
+        private int mWrites;
+        private int mFailedWrites;
+        private int mFenceAlerts;
+        private long mLastTime = -1;
+
+        Summary summarize(ByteBuffer records, long first, long end) {
+            for (long i = first; i < end; i++) {
+                int offset = HEADER_SIZE + (int) (i % CAPACITY) * RECORD_SIZE;
+                long time = records.getLong(offset);
+                long device = records.getLong(offset + 8);
+                int type = records.getShort(offset + 16);
+                int status = records.getShort(offset + 18) & 0xffff;
+                int value = records.getInt(offset + 20);
+
+                if (type == TYPE_LOG_OPENED || time < mLastTime) {
+                    // Service restart or reboot, nothing pairs across it
+                    mDevices.clear();
+                }
+                mLastTime = time;
+                if (type != TYPE_LOG_OPENED) {
+                    add(getDevice(device), time, type, status, value);
+                }
+            }
+            return this;
+        }
+
+        private Device getDevice(long address) {
+            Device device = mDevices.get(address);
+            if (device == null) {
+                device = new Device();
+                mDevices.put(address, device);
+            }
+            return device;
+        }
+
+        private void add(Device device, long time, int type, int status, int value) {
+            switch (type) {
+                case TYPE_CONNECT:
+                    if (device.connectStart < 0) {
+                        device.connectStart = time;
+                    }
+                    break;
+                case TYPE_CONNECTION_STATE:
+                    if (value == GattTransport.STATE_CONNECTED) {
+                        if (device.connectStart >= 0) {
+                            mConnect.add(time - device.connectStart);
+                        }
+                        if (device.lostAt >= 0) {
+                            mOutage.add(time - device.lostAt);
+                        }
+                        device.connectStart = -1;
+                        device.connectedAt = time;
+                        device.lostAt = -1;
+                    } else if (device.connectedAt >= 0) {
+                        mConnectedTime += time - device.connectedAt;
+                        mDisconnects++;
+                        device.connectedAt = -1;
+                        device.lostAt = time;
+                    } else {
+                        mFailedConnects++;
+                    }
+                    break;
+                case TYPE_SERVICES_DISCOVERED:
+                    if (device.connectedAt >= 0 && status == GattTransport.GATT_SUCCESS) {
+                        mDiscover.add(time - device.connectedAt);
+                    }
+                    break;
+                case TYPE_WRITE:
+                    mWrites++;
+                    if (status != GattTransport.GATT_SUCCESS) {
+                        mFailedWrites++;
+                    }
+                    break;
+                case TYPE_RSSI:
+                    int bucket = value < RSSI_MIN ? 0
+                            : Math.min((value - RSSI_MIN) / RSSI_BUCKET + 1, mRssi.length - 1);
+                    mRssi[bucket]++;
+                    break;
+                case TYPE_FENCE:
+                    if (value != 0) {
+                        mFenceAlerts++;
+                    }
+                    break;
+            }
+        }
+
+        void dump(String prefix, PrintWriter pw) {
+            mConnect.dump(prefix, pw);
+            mDiscover.dump(prefix, pw);
+            mOutage.dump(prefix, pw);
+
+            // Connections still up at the end of the log count as well
+            long connectedTime = mConnectedTime;
+            for (Device device : mDevices.values()) {
+                if (device.connectedAt >= 0) {
+                    connectedTime += mLastTime - device.connectedAt;
+                }
+            }
+            pw.print(prefix + "disconnects=" + mDisconnects + " in "
+                    + connectedTime / 60000 + "min connected");
+            if (connectedTime > 0) {
+                pw.print(" (" + String.format("%.2f", mDisconnects * 3600000f / connectedTime)
+                        + "/h)");
+            }
+            pw.println(" failedConnects=" + mFailedConnects);
+            pw.println(prefix + "writes=" + mWrites + " failed=" + mFailedWrites
+                    + " fenceAlerts=" + mFenceAlerts);
+
+            pw.print(prefix + "rssi:");
+            for (int i = 0; i < mRssi.length; i++) {
+                if (mRssi[i] == 0) {
+                    continue;
+                }
+                if (i == 0) {
+                    pw.print(" <" + RSSI_MIN);
+                } else if (i == mRssi.length - 1) {
+                    pw.print(" >=" + (RSSI_MIN + (i - 1) * RSSI_BUCKET));
+                } else {
+                    pw.print(" " + (RSSI_MIN + (i - 1) * RSSI_BUCKET));
+                }
+                pw.print(":" + mRssi[i]);
+            }
+            pw.println();
+        }
+    }
+
+    /**
+     * Durations in milliseconds, reported as percentiles.
+     */
+    private static final class Samples {
+        private final String mName;
+        private long[] mValues = new long[16];
+        private int mCount;
+
+        Samples(String name) {
+            mName = name;
+        }
+
+        void add(long value) {
+            if (mCount == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+            }
+            mValues[mCount++] = value;
+        }
+
+        void dump(String prefix, PrintWriter pw) {
+            pw.print(prefix + mName + ": count=" + mCount);
+            if (mCount > 0) {
+                Arrays.sort(mValues, 0, mCount);
+                pw.print(" p50=" + percentile(50) + "ms p90=" + percentile(90)
+                        + "ms p99=" + percentile(99) + "ms max=" + mValues[mCount - 1] + "ms");
+            }
+            pw.println();
+        }
+
+        private long percentile(int percent) {
+            return mValues[Math.min((mCount * percent + 99) / 100, mCount) - 1];
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Decides when and how to reconnect to a lost device. Direct connection
+ * attempts are retried with an exponentially growing, jittered delay.
+ * After a few failed attempts the device is most likely out of range,
+ * so the scheduler switches to a single background (autoConnect)
+ * connection, which the controller runs at a low duty cycle until the
+ * device shows up again.
+ */
+final class ReconnectScheduler {
+
+    private static final String TAG = ReconnectScheduler.class.getSimpleName();
+
+    private static final long INITIAL_DELAY = 1000;
+    private static final long MAX_DELAY = 5 * 60 * 1000;
+    private static final float JITTER = 0.2f;
+    private static final int AUTO_CONNECT_THRESHOLD = 3;
+
+    interface Callback {
+        void onReconnect(boolean autoConnect);
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final Random mRandom = new Random();
+
+    private int mFailedAttempts;
+    private long mDisconnectTime;
+    private boolean mAutoConnectPending;
+
+    // Time to reconnect statistics
+    private int mReconnects;
+    private long mLastReconnectTime;
+    private long mMaxReconnectTime;
+    private long mTotalReconnectTime;
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean autoConnect = mFailedAttempts >= AUTO_CONNECT_THRESHOLD;
+            Log.d(TAG, "Reconnecting, attempt " + (mFailedAttempts + 1)
+                    + (autoConnect ? " (background)" : ""));
+            mAutoConnectPending = autoConnect;
+            mCallback.onReconnect(autoConnect);
+        }
+    };
+
+    ReconnectScheduler(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Called when the connection was lost or a connection attempt failed.
+     */
+    void onDisconnected() {
+        long now = SystemClock.elapsedRealtime();
+        if (mDisconnectTime == 0) {
+            // Link just dropped, try again right away
+            mDisconnectTime = now;
+            mFailedAttempts = 0;
+            schedule(0);
+            return;
+        }
+
+        mFailedAttempts++;
+        mAutoConnectPending = false;
+        schedule(getBackoffDelay());
+    }
+
+    void onConnected() {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (mDisconnectTime != 0) {
+            long elapsed = SystemClock.elapsedRealtime() - mDisconnectTime;
+            mReconnects++;
+            mLastReconnectTime = elapsed;
+            mTotalReconnectTime += elapsed;
+            mMaxReconnectTime = Math.max(mMaxReconnectTime, elapsed);
+            Log.d(TAG, "Reconnected after " + elapsed + "ms");
+        }
+        mDisconnectTime = 0;
+        mFailedAttempts = 0;
+        mAutoConnectPending = false;
+    }
+
+    /**
+     * Retries right away with a direct connection, e.g. because Bluetooth
+     * was turned on or the user turned on the screen and is likely to use
+     * the device. The backoff starts over.
+     */
+    void retryNow() {
+        if (mDisconnectTime == 0 && !mAutoConnectPending) {
+            return;
+        }
+        mFailedAttempts = 0;
+        schedule(0);
+    }
+
+    void cancel() {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mDisconnectTime = 0;
+        mFailedAttempts = 0;
+        mAutoConnectPending = false;
+    }
+
+    boolean isAutoConnectPending() {
+        return mAutoConnectPending;
+    }
+
+    private long getBackoffDelay() {
+        int exponent = Math.min(mFailedAttempts - 1, 30);
+        long delay = Math.min(INITIAL_DELAY << exponent, MAX_DELAY);
+        float jitter = (mRandom.nextFloat() * 2 - 1) * JITTER;
+        return (long) (delay * (1 + jitter));
+    }
+
+    private void schedule(long delay) {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.postDelayed(mReconnectRunnable, delay);
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix);
+        pw.print("reconnects=");
+        pw.print(mReconnects);
+        if (mReconnects > 0) {
+            pw.print(" last=");
+            pw.print(mLastReconnectTime);
+            pw.print("ms avg=");
+            pw.print(mTotalReconnectTime / mReconnects);
+            pw.print("ms max=");
+            pw.print(mMaxReconnectTime);
+            pw.print("ms");
+        }
+        pw.println();
+        pw.print(prefix);
+        pw.print("failedAttempts=");
+        pw.print(mFailedAttempts);
+        pw.print(" autoConnectPending=");
+        pw.println(mAutoConnectPending);
+    }
+}
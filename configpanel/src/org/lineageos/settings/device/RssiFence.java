@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+/**
+ * Proximity fence based on the RSSI of a connected device.
+ *
+ * Raw samples are smoothed with an exponentially weighted moving average
+ * and compared against separate enter and exit thresholds, so a signal
+ * hovering around a single threshold doesn't make the alert flap. The
+ * fence also suggests when to sample next: quickly while the signal is
+ * close to or heading towards the threshold that would change the state,
+ * rarely while it is far away from it.
+ */
+final class RssiFence {
+
+    // Alert once the smoothed RSSI drops below this value (dBm)
+    static final int ENTER_THRESHOLD = -90;
+    // Stop alerting once the smoothed RSSI rises above this value (dBm)
+    static final int EXIT_THRESHOLD = -84;
+
+    static final long MIN_POLL_INTERVAL = 2000;
+    static final long MAX_POLL_INTERVAL = 30000;
+
+    // Weight of a new sample in the moving averages
+    private static final float SMOOTHING_FACTOR = 0.3f;
+    // Distance to the threshold (dB) above which the signal counts as safe
+    private static final float SAFE_MARGIN = 15f;
+    // Number of samples the trend is extrapolated ahead
+    private static final float TREND_LOOKAHEAD = 3f;
+
+    private final int mEnterThreshold;
+    private final int mExitThreshold;
+
+    private boolean mHasSample;
+    private float mSmoothedRssi;
+    private float mTrend;
+    private boolean mAlerting;
+
+    RssiFence() {
+        this(ENTER_THRESHOLD, EXIT_THRESHOLD);
+    }
+
+    RssiFence(int enterThreshold, int exitThreshold) {
+        if (exitThreshold < enterThreshold) {
+            throw new IllegalArgumentException("Exit threshold below enter threshold");
+        }
+        mEnterThreshold = enterThreshold;
+        mExitThreshold = exitThreshold;
+    }
+
+    void reset() {
+        mHasSample = false;
+        mSmoothedRssi = 0;
+        mTrend = 0;
+        mAlerting = false;
+    }
+
+    /**
+     * Adds a raw RSSI sample.
+     *
+     * @return whether the alert state changed
+     */
+    boolean addSample(int rssi) {
+        if (!mHasSample) {
+            mSmoothedRssi = rssi;
+            mTrend = 0;
+            mHasSample = true;
+        } else {
+            float previous = mSmoothedRssi;
+            mSmoothedRssi += SMOOTHING_FACTOR * (rssi - mSmoothedRssi);
+            mTrend += SMOOTHING_FACTOR * ((mSmoothedRssi - previous) - mTrend);
+        }
+
+        boolean alerting = mAlerting;
+        if (!mAlerting && mSmoothedRssi < mEnterThreshold) {
+            mAlerting = true;
+        } else if (mAlerting && mSmoothedRssi > mExitThreshold) {
+            mAlerting = false;
+        }
+        return alerting != mAlerting;
+    }
+
+    boolean isAlerting() {
+        return mAlerting;
+    }
+
+    float getSmoothedRssi() {
+        return mSmoothedRssi;
+    }
+
+    /**
+     * Returns the suggested delay until the next sample, in milliseconds.
+     */
+    long getPollInterval() {
+        if (!mHasSample) {
+            return MIN_POLL_INTERVAL;
+        }
+
+        // Distance to the threshold that would flip the state, extrapolated
+        // by the current trend if it is heading towards that threshold
+        float margin;
+        if (mAlerting) {
+            margin = mExitThreshold - mSmoothedRssi;
+            margin -= Math.max(mTrend, 0) * TREND_LOOKAHEAD;
+        } else {
+            margin = mSmoothedRssi - mEnterThreshold;
+            margin += Math.min(mTrend, 0) * TREND_LOOKAHEAD;
+        }
+
+        if (margin <= 0) {
+            return MIN_POLL_INTERVAL;
+        }
+        if (margin >= SAFE_MARGIN) {
+            return MAX_POLL_INTERVAL;
+        }
+        return MIN_POLL_INTERVAL
+                + (long) ((MAX_POLL_INTERVAL - MIN_POLL_INTERVAL) * margin / SAFE_MARGIN);
+    }
+}
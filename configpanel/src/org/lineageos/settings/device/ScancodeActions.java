@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+/**
+ * Actions the key handler can perform for a scancode, and the loader for
+ * the scancode to action dispatch table defined by
+ * {@code config_keyHandlerScancodeActions}.
+ */
+final class ScancodeActions {
+
+    private static final String TAG = ScancodeActions.class.getSimpleName();
+
+    static final int ACTION_NONE = 0;
+    static final int ACTION_ZEN_OFF = 1;
+    static final int ACTION_ZEN_IMPORTANT_INTERRUPTIONS = 2;
+    static final int ACTION_ZEN_ALARMS = 3;
+    static final int ACTION_ZEN_NO_INTERRUPTIONS = 4;
+    static final int ACTION_RINGER_VIBRATE = 5;
+    static final int ACTION_RINGER_SILENT = 6;
+    static final int ACTION_CAMERA_GESTURE = 7;
+    static final int ACTION_TORCH = 8;
+    static final int ACTION_MEDIA_PLAY_PAUSE = 9;
+    static final int ACTION_MEDIA_NEXT = 10;
+    static final int ACTION_MEDIA_PREVIOUS = 11;
+    static final int ACTION_COUNT = 12;
+
+    // Indexed by action
+    private static final String[] ACTION_NAMES = {
+        "none",
+        "zen_off",
+        "zen_important_interruptions",
+        "zen_alarms",
+        "zen_no_interruptions",
+        "ringer_vibrate",
+        "ringer_silent",
+        "camera_gesture",
+        "torch",
+        "media_play_pause",
+        "media_next",
+        "media_previous",
+    };
+
+    // Highest scancode the input subsystem can report (KEY_MAX)
+    private static final int MAX_SCANCODE = 0x2ff;
+
+    private ScancodeActions() {
+    }
+
+    /**
+     * Returns whether the action is driven by the tri-state slider. Slider
+     * actions are committed on key up and coalesced, everything else fires
+     * right away.
+     */
+    static boolean isSliderAction(int action) {
+        return action >= ACTION_ZEN_OFF && action <= ACTION_RINGER_SILENT;
+    }
+
+    static String getName(int action) {
+        return ACTION_NAMES[action];
+    }
+
+    /**
+     * Builds a dense table indexed by scancode that holds the action for
+     * every configured scancode and {@link #ACTION_NONE} for the rest.
+     */
+    static int[] loadTable(Resources res) {
+        String[] entries = res.getStringArray(R.array.config_keyHandlerScancodeActions);
+        int[] scancodes = new int[entries.length];
+        int[] actions = new int[entries.length];
+        int maxScancode = -1;
+
+        for (int i = 0; i < entries.length; i++) {
+            scancodes[i] = -1;
+            int separator = entries[i].indexOf(':');
+            if (separator < 0) {
+                Log.e(TAG, "Malformed scancode action " + entries[i]);
+                continue;
+            }
+            int scancode;
+            try {
+                scancode = Integer.parseInt(entries[i].substring(0, separator).trim());
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Malformed scancode action " + entries[i]);
+                continue;
+            }
+            int action = parseAction(entries[i].substring(separator + 1).trim());
+            if (scancode < 0 || scancode > MAX_SCANCODE || action == ACTION_NONE) {
+                Log.e(TAG, "Invalid scancode action " + entries[i]);
+                continue;
+            }
+            scancodes[i] = scancode;
+            actions[i] = action;
+            maxScancode = Math.max(maxScancode, scancode);
+        }
+
+        int[] table = new int[maxScancode + 1];
+        for (int i = 0; i < entries.length; i++) {
+            if (scancodes[i] >= 0) {
+                table[scancodes[i]] = actions[i];
+            }
+        }
+        return table;
+    }
+
+    private static int parseAction(String name) {
+        for (int action = 0; action < ACTION_NAMES.length; action++) {
+            if (ACTION_NAMES[action].equals(name)) {
+                return action;
+            }
+        }
+        return ACTION_NONE;
+    }
+}
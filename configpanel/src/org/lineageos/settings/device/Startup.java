@@ -30,56 +30,162 @@ import android.os.Build;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.lineageos.internal.util.FileUtils;
 import org.lineageos.settings.device.utils.Constants;
+import org.lineageos.settings.device.utils.NodeWriter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class Startup extends BroadcastReceiver {
 
     private static final String TAG = Startup.class.getSimpleName();
 
+    // Background receivers get 60s, but nobody should wait that long at boot
+    private static final long INIT_DEADLINE = 8000;
+
+    // Threads go away once the work at boot is done
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(final Context context, Intent intent) {
         final String action = intent.getAction();
         if (lineageos.content.Intent.ACTION_INITIALIZE_LINEAGE_HARDWARE.equals(action)) {
-            // Disable button settings if needed
-            if (!hasButtonProcs()) {
-                disableComponent(context, ButtonSettingsActivity.class.getName());
-            } else {
-                enableComponent(context, ButtonSettingsActivity.class.getName());
-
-                // Restore nodes to saved preference values
-                for (String pref : Constants.sButtonPrefKeys) {
-                    String node, value;
-                    if (Constants.sStringNodePreferenceMap.containsKey(pref)) {
-                        node = Constants.sStringNodePreferenceMap.get(pref);
-                        value = Constants.getPreferenceString(context, pref);
-                    } else {
-                        node = Constants.sBooleanNodePreferenceMap.get(pref);
-                        value = Constants.isPreferenceEnabled(context, pref) ?
-                                "1" : "0";
-                    }
-                    if (!FileUtils.writeLine(node, value)) {
-                        Log.w(TAG, "Write to node " + node +
-                            " failed while restoring saved preference values");
+            initializeHardware(context);
+        } else if (intent.getAction().equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+            if (hasOClick()) {
+                updateOClickServiceState(context);
+            }
+        }
+    }
+
+    /**
+     * Restores the nodes, toggles the components and starts the O-Click
+     * service in parallel, off the main thread. The broadcast is finished
+     * once all of them are done or the deadline passed.
+     */
+    private void initializeHardware(final Context context) {
+        final PendingResult result = goAsync();
+        final long start = SystemClock.elapsedRealtime();
+        final CountDownLatch done = new CountDownLatch(3);
+
+        // Both tasks below need it, probe the nodes only once
+        final Future<Boolean> buttonProcs = sExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return hasButtonProcs();
+            }
+        });
+
+        runTimed("Node restore", done, new Runnable() {
+            @Override
+            public void run() {
+                if (getProbeResult(buttonProcs)) {
+                    restoreButtonNodes(context);
+                }
+            }
+        });
+        runTimed("Component update", done, new Runnable() {
+            @Override
+            public void run() {
+                // Disable button settings if needed
+                if (!getProbeResult(buttonProcs)) {
+                    disableComponent(context, ButtonSettingsActivity.class.getName());
+                } else {
+                    enableComponent(context, ButtonSettingsActivity.class.getName());
+                }
+
+                // Disable O-Click settings if needed
+                if (!hasOClick()) {
+                    disableComponent(context, BluetoothInputSettings.class.getName());
+                    disableComponent(context, OclickService.class.getName());
+                }
+            }
+        });
+        runTimed("O-Click service update", done, new Runnable() {
+            @Override
+            public void run() {
+                if (hasOClick()) {
+                    updateOClickServiceState(context);
+                }
+            }
+        });
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!done.await(INIT_DEADLINE, TimeUnit.MILLISECONDS)) {
+                        Log.w(TAG, "Hardware initialization missed its deadline, "
+                                + done.getCount() + " tasks still running");
                     }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while waiting for hardware initialization");
+                } finally {
+                    long now = SystemClock.elapsedRealtime();
+                    Log.i(TAG, "Hardware initialization took " + (now - start)
+                            + "ms, finished " + now + "ms after boot");
+                    result.finish();
                 }
             }
+        });
+    }
 
-            // Disable O-Click settings if needed
-            if (!hasOClick()) {
-                disableComponent(context, BluetoothInputSettings.class.getName());
-                disableComponent(context, OclickService.class.getName());
-            } else {
-                updateOClickServiceState(context);
+    private static void runTimed(final String name, final CountDownLatch done,
+            final Runnable task) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, name + " failed", e);
+                } finally {
+                    Log.d(TAG, name + " took " + (SystemClock.elapsedRealtime() - start) + "ms");
+                    done.countDown();
+                }
             }
-        } else if (intent.getAction().equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-            if (hasOClick()) {
-                updateOClickServiceState(context);
+        });
+    }
+
+    private static boolean getProbeResult(Future<Boolean> probe) {
+        try {
+            return probe.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Probing the button nodes failed", e);
+            return false;
+        }
+    }
+
+    private static void restoreButtonNodes(Context context) {
+        NodeWriter nodeWriter = NodeWriter.getInstance();
+        // Restore nodes to saved preference values
+        for (String pref : Constants.sButtonPrefKeys) {
+            String node, value;
+            if (Constants.sStringNodePreferenceMap.containsKey(pref)) {
+                node = Constants.sStringNodePreferenceMap.get(pref);
+                value = Constants.getPreferenceString(context, pref);
+            } else {
+                node = Constants.sBooleanNodePreferenceMap.get(pref);
+                value = Constants.isPreferenceEnabled(context, pref) ?
+                        "1" : "0";
             }
+            nodeWriter.write(node, value);
+        }
+        // Failures are logged and counted by the writer
+        if (!nodeWriter.sync(INIT_DEADLINE)) {
+            Log.w(TAG, "Restoring saved preference values timed out");
         }
     }
 
@@ -119,7 +225,7 @@ public class Startup extends BroadcastReceiver {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean shouldStartService = adapter != null
                 && adapter.getState() == BluetoothAdapter.STATE_ON
-                && prefs.contains(Constants.OCLICK_DEVICE_ADDRESS_KEY);
+                && !Constants.getOclickDeviceAddresses(prefs).isEmpty();
         Intent serviceIntent = new Intent(context, OclickService.class);
 
         if (shouldStartService) {
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.io.PrintWriter;
+
+/**
+ * Tells single and double taps apart for buttons that only report raw
+ * presses, like the one of the O-Click 1.
+ *
+ * The double tap window is learned from the intervals of the user's
+ * actual double taps instead of being fixed at a value that has to fit
+ * the slowest user, so single taps are reported as early as possible.
+ * In instant single mode single taps are reported right away, and a
+ * second tap within the window is reported as a double tap on top.
+ *
+ * The recognizer doesn't keep time itself. The caller passes in the
+ * time of every tap and calls {@link #onTimeout} once the delay returned
+ * by {@link #onTap} has elapsed.
+ */
+final class TapRecognizer {
+
+    static final long MIN_WINDOW = 250;
+    static final long MAX_WINDOW = 1500;
+    private static final long INITIAL_WINDOW = 600;
+
+    // Window length relative to the typical double tap interval
+    private static final float WINDOW_SCALE = 1.75f;
+    // Weight of a new interval in the moving average
+    private static final float SMOOTHING_FACTOR = 0.25f;
+
+    interface Listener {
+        void onSingleTap();
+        void onDoubleTap();
+    }
+
+    private final Listener mListener;
+    private boolean mInstantSingle;
+
+    private float mAverageInterval = INITIAL_WINDOW / WINDOW_SCALE;
+    private boolean mPending;
+    private long mLastTapTime;
+
+    TapRecognizer(Listener listener) {
+        mListener = listener;
+    }
+
+    void setInstantSingle(boolean instantSingle) {
+        mInstantSingle = instantSingle;
+        mPending = false;
+    }
+
+    /**
+     * Called for every press of the button.
+     *
+     * @return the delay after which {@link #onTimeout} has to be called,
+     *         or -1 if no timeout is needed
+     */
+    long onTap(long now) {
+        long interval = now - mLastTapTime;
+        mLastTapTime = now;
+
+        if (mPending) {
+            mPending = false;
+            learn(interval);
+            mListener.onDoubleTap();
+            return -1;
+        }
+
+        mPending = true;
+        if (mInstantSingle) {
+            mListener.onSingleTap();
+        }
+        return getWindow();
+    }
+
+    void onTimeout() {
+        if (!mPending) {
+            return;
+        }
+        mPending = false;
+        if (!mInstantSingle) {
+            mListener.onSingleTap();
+        }
+    }
+
+    void reset() {
+        mPending = false;
+    }
+
+    long getWindow() {
+        long window = (long) (mAverageInterval * WINDOW_SCALE);
+        return Math.max(MIN_WINDOW, Math.min(window, MAX_WINDOW));
+    }
+
+    private void learn(long interval) {
+        mAverageInterval += SMOOTHING_FACTOR * (interval - mAverageInterval);
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix);
+        pw.print("tapWindow=");
+        pw.print(getWindow());
+        pw.print("ms instantSingle=");
+        pw.println(mInstantSingle);
+    }
+}
@@ -17,8 +17,11 @@
 
 package org.lineageos.settings.device.utils;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -30,11 +33,16 @@ public class Constants {
 
     // Preference keys
     public static final String OCLICK_CONNECT_KEY = "oclick_connect";
+    // Single device address stored by older versions, see getOclickDeviceAddresses()
     public static final String OCLICK_DEVICE_ADDRESS_KEY = "oclick_device_address";
+    public static final String OCLICK_DEVICE_ADDRESSES_KEY = "oclick_device_addresses";
     public static final String OCLICK_SNAPSHOT_KEY = "oclick_take_snapshot";
     public static final String OCLICK_FIND_PHONE_KEY = "oclick_find_my_phone";
+    public static final String OCLICK_INSTANT_SHUTTER_KEY = "oclick_instant_shutter";
     public static final String OCLICK_FENCE_KEY = "oclick_fence";
     public static final String OCLICK_DISCONNECT_ALERT_KEY = "oclick_disconnect_alert";
+    // Not user visible, caches the sound found by LocatorRingtone
+    public static final String OCLICK_LOCATOR_RINGTONE_KEY = "oclick_locator_ringtone";
     public static final String NOTIF_SLIDER_TOP_KEY = "keycode_top_position";
     public static final String NOTIF_SLIDER_MIDDLE_KEY = "keycode_middle_position";
     public static final String NOTIF_SLIDER_BOTTOM_KEY = "keycode_bottom_position";
@@ -68,6 +76,7 @@ public class Constants {
 
         sNodeDefaultMap.put(OCLICK_FENCE_KEY, true);
         sNodeDefaultMap.put(OCLICK_DISCONNECT_ALERT_KEY, true);
+        sNodeDefaultMap.put(OCLICK_INSTANT_SHUTTER_KEY, false);
     }
 
     public static boolean isPreferenceEnabled(Context context, String key) {
@@ -79,4 +88,25 @@ public class Constants {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
         return preferences.getString(key, (String) sNodeDefaultMap.get(key));
     }
+
+    /**
+     * Returns the addresses of all paired O-Clicks, including the one paired
+     * by older versions that only supported a single device.
+     */
+    public static Set<String> getOclickDeviceAddresses(SharedPreferences prefs) {
+        Set<String> addresses = new HashSet<>(prefs.getStringSet(OCLICK_DEVICE_ADDRESSES_KEY,
+                Collections.<String>emptySet()));
+        String legacyAddress = prefs.getString(OCLICK_DEVICE_ADDRESS_KEY, null);
+        if (legacyAddress != null) {
+            addresses.add(legacyAddress);
+        }
+        return addresses;
+    }
+
+    public static void setOclickDeviceAddresses(SharedPreferences prefs, Set<String> addresses) {
+        prefs.edit()
+                .putStringSet(OCLICK_DEVICE_ADDRESSES_KEY, addresses)
+                .remove(OCLICK_DEVICE_ADDRESS_KEY)
+                .apply();
+    }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device.utils;
+
+import android.os.Handler;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import org.lineageos.internal.util.FileUtils;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * All reads and writes of sysfs and proc nodes go through here. The last
+ * value known to be in each node is cached, so writing the same value
+ * again costs nothing. Reads and writes happen on a single background
+ * thread, and changes that arrive while a write of the same node is still
+ * queued replace its value, so each node is written at most once per
+ * batch.
+ */
+public final class NodeWriter {
+
+    private static final String TAG = NodeWriter.class.getSimpleName();
+
+    private static NodeWriter sInstance;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // All guarded by this
+    private final Map<String, String> mValues = new ArrayMap<>();
+    private final Map<String, String> mPending = new ArrayMap<>();
+    private final Map<String, Integer> mErrors = new ArrayMap<>();
+    // Probed along with the first read of each node
+    private final Map<String, Boolean> mWritable = new ArrayMap<>();
+    private int mWrites;
+    private int mSuppressed;
+
+    private NodeWriter() {
+    }
+
+    public static synchronized NodeWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new NodeWriter();
+        }
+        return sInstance;
+    }
+
+    public interface ReadCallback {
+        // value is null if the node can't be read
+        void onNodeRead(String node, String value);
+    }
+
+    /**
+     * Looks up the value of the node on the background thread and passes
+     * it to the callback on the handler. The node is only read if its
+     * value isn't known yet.
+     */
+    public void read(final String node, final Handler handler, final ReadCallback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String value = readNode(node);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onNodeRead(node, value);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns whether the node can be written. Only known once the node was
+     * read, false until then.
+     */
+    public synchronized boolean isWritable(String node) {
+        Boolean writable = mWritable.get(node);
+        return writable != null && writable;
+    }
+
+    /**
+     * Queues a write of the node, unless it already holds the value.
+     */
+    public synchronized void write(final String node, String value) {
+        String current = mPending.containsKey(node) ? mPending.get(node) : mValues.get(node);
+        if (value.equals(current)) {
+            mSuppressed++;
+            return;
+        }
+
+        if (mPending.put(node, value) != null) {
+            // The queued write will pick up the new value
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushNode(node);
+            }
+        });
+    }
+
+    /**
+     * Waits until all writes queued so far are done, including the ones
+     * a value changed during its write queued again.
+     *
+     * @return whether they were done before the timeout
+     */
+    public boolean sync(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true) {
+                mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                synchronized (this) {
+                    if (mPending.isEmpty()) {
+                        return true;
+                    }
+                }
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    public synchronized void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "nodeWriter: writes=" + mWrites + " suppressed=" + mSuppressed);
+        for (Map.Entry<String, Integer> entry : mErrors.entrySet()) {
+            pw.println(prefix + "  " + entry.getKey() + ": errors=" + entry.getValue());
+        }
+    }
+
+    private String readNode(String node) {
+        String value;
+        boolean probe;
+        synchronized (this) {
+            value = mPending.get(node);
+            if (value == null) {
+                value = mValues.get(node);
+            }
+            probe = !mWritable.containsKey(node);
+        }
+
+        if (probe) {
+            boolean writable = FileUtils.isFileWritable(node);
+            synchronized (this) {
+                mWritable.put(node, writable);
+            }
+        }
+        if (value != null) {
+            return value;
+        }
+
+        value = FileUtils.readOneLine(node);
+        if (value != null) {
+            synchronized (this) {
+                // Don't overwrite a value written in the meantime
+                if (!mValues.containsKey(node)) {
+                    mValues.put(node, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    private void flushNode(String node) {
+        String value;
+        synchronized (this) {
+            value = mPending.get(node);
+            if (value == null) {
+                return;
+            }
+            if (value.equals(mValues.get(node))) {
+                // Changed back before the write went out
+                mPending.remove(node);
+                mSuppressed++;
+                return;
+            }
+        }
+
+        boolean success = FileUtils.writeLine(node, value);
+
+        synchronized (this) {
+            // A newer value queues a new write, see write()
+            if (value.equals(mPending.get(node))) {
+                mPending.remove(node);
+            } else {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushNode(node);
+                    }
+                });
+            }
+            mWrites++;
+            if (success) {
+                mValues.put(node, value);
+            } else {
+                // Unknown what the node holds now, read it again when asked
+                mValues.remove(node);
+                Integer errors = mErrors.get(node);
+                errors = errors == null ? 1 : errors + 1;
+                mErrors.put(node, errors);
+                Log.w(TAG, "Write of " + value + " to node " + node + " failed, "
+                        + errors + " failures so far");
+            }
+        }
+    }
+}
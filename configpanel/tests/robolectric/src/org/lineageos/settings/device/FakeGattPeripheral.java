@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * In-process stand-in for an O-Click 1 or O-Click 2, to drive an
+ * {@link OclickConnection} without hardware.
+ *
+ * The fake implements the trigger or key service, the immediate alert
+ * and link loss services, and the O-Click 2 RSSI report and connection
+ * parameter messages. Scripts can press the button, move the device out
+ * of range, drop the link, change the RSSI, fail writes and add latency
+ * to every callback. Callbacks are delivered on the thread of the given
+ * handler, with the main looper of a Robolectric test time only moves on
+ * when the test lets it.
+ */
+final class FakeGattPeripheral implements GattTransport.Factory {
+
+    enum Model {
+        OCLICK_1,
+        OCLICK_2
+    }
+
+    // Status of a lost link (GATT_CONN_TIMEOUT)
+    static final int STATUS_LINK_LOSS = 0x08;
+    // Status of a failed direct connection attempt (GATT_ERROR)
+    static final int STATUS_CONNECT_FAILED = 0x85;
+
+    // Shorter than the 30s of the real stack, to keep scripts quick
+    private static final long CONNECT_TIMEOUT = 5000;
+
+    private final Model mModel;
+    private final Handler mHandler;
+    private final ByteBuffer mFrame = Oclick2Codec.allocateBuffer();
+    private final Oclick2Codec.Message mMessage = new Oclick2Codec.Message();
+
+    // All of the below is guarded by this
+    private Link mLink;
+    private Link mPendingLink;
+    private boolean mInRange = true;
+    private long mLatency;
+    private int mRssi = -60;
+    private int mFailWrites;
+    private int mFailRssiReads;
+
+    private int mAlertLevel;
+    private int mLinkLossLevel;
+    private int mRssiReportInterval;
+    private int mMinInterval;
+    private int mMaxInterval;
+    private int mConnectionLatency;
+    private int mSupervisionTimeout;
+    private int mConnections;
+
+    private final class Link implements GattTransport {
+        final boolean autoConnect;
+        final Callback callback;
+        final Set<UUID> notifying = new HashSet<>();
+        boolean connected;
+        boolean closed;
+        Runnable connectTimeout;
+
+        Link(boolean autoConnect, Callback callback) {
+            this.autoConnect = autoConnect;
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            synchronized (FakeGattPeripheral.this) {
+                if (!connected) {
+                    return false;
+                }
+                deliver(this, new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onServicesDiscovered(Link.this, GATT_SUCCESS);
+                    }
+                });
+                return true;
+            }
+        }
+
+        @Override
+        public boolean hasCharacteristic(UUID service, UUID characteristic) {
+            return FakeGattPeripheral.this.hasCharacteristic(service, characteristic);
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(UUID service, UUID characteristic,
+                boolean enable) {
+            synchronized (FakeGattPeripheral.this) {
+                if (!hasCharacteristic(service, characteristic)) {
+                    return false;
+                }
+                if (enable) {
+                    notifying.add(characteristic);
+                } else {
+                    notifying.remove(characteristic);
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public boolean writeCharacteristic(final UUID service, final UUID characteristic,
+                byte[] value) {
+            synchronized (FakeGattPeripheral.this) {
+                if (!connected || !hasCharacteristic(service, characteristic)) {
+                    return false;
+                }
+                final int status;
+                if (mFailWrites > 0) {
+                    mFailWrites--;
+                    status = GATT_FAILURE;
+                } else {
+                    status = GATT_SUCCESS;
+                    onWrite(this, service, characteristic, value);
+                }
+                deliver(this, new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCharacteristicWrite(Link.this, service, characteristic,
+                                status);
+                    }
+                });
+                return true;
+            }
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            synchronized (FakeGattPeripheral.this) {
+                if (!connected) {
+                    return false;
+                }
+                final int rssi = mRssi;
+                final int status;
+                if (mFailRssiReads > 0) {
+                    mFailRssiReads--;
+                    status = GATT_FAILURE;
+                } else {
+                    status = GATT_SUCCESS;
+                }
+                deliver(this, new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReadRemoteRssi(Link.this, rssi, status);
+                    }
+                });
+                return true;
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            synchronized (FakeGattPeripheral.this) {
+                if (connected || this == mPendingLink) {
+                    drop(this, GATT_SUCCESS);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (FakeGattPeripheral.this) {
+                closed = true;
+                if (connected || this == mPendingLink) {
+                    drop(this, GATT_SUCCESS);
+                }
+            }
+        }
+    }
+
+    private final Runnable mRssiReportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (FakeGattPeripheral.this) {
+                notifyFrame(Oclick2Codec.encodeRssi(mFrame, mRssi));
+                mHandler.postDelayed(this, mRssiReportInterval * 1000L);
+            }
+        }
+    };
+
+    FakeGattPeripheral(Model model, Handler handler) {
+        mModel = model;
+        mHandler = handler;
+    }
+
+    @Override
+    public GattTransport connect(boolean autoConnect, GattTransport.Callback callback) {
+        final Link link = new Link(autoConnect, callback);
+        synchronized (this) {
+            if (mInRange) {
+                establish(link);
+            } else {
+                mPendingLink = link;
+                if (!autoConnect) {
+                    link.connectTimeout = new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (FakeGattPeripheral.this) {
+                                if (link == mPendingLink) {
+                                    drop(link, STATUS_CONNECT_FAILED);
+                                }
+                            }
+                        }
+                    };
+                    mHandler.postDelayed(link.connectTimeout, CONNECT_TIMEOUT);
+                }
+            }
+        }
+        return link;
+    }
+
+    /**
+     * Sets the delay of every callback, in milliseconds.
+     */
+    synchronized void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    synchronized void setRssi(int rssi) {
+        mRssi = rssi;
+    }
+
+    /**
+     * Moves the device out of or back into range. Leaving the range drops
+     * the link, coming back completes a pending connection attempt.
+     */
+    synchronized void setInRange(boolean inRange) {
+        mInRange = inRange;
+        if (!inRange && mLink != null) {
+            drop(mLink, STATUS_LINK_LOSS);
+        } else if (inRange && mPendingLink != null) {
+            Link link = mPendingLink;
+            if (link.connectTimeout != null) {
+                mHandler.removeCallbacks(link.connectTimeout);
+            }
+            establish(link);
+        }
+    }
+
+    /**
+     * Drops the link while the device stays in range, like interference
+     * would.
+     */
+    synchronized void dropLink() {
+        if (mLink != null) {
+            drop(mLink, STATUS_LINK_LOSS);
+        }
+    }
+
+    /**
+     * Lets the next characteristic writes fail with GATT_FAILURE.
+     */
+    synchronized void failNextWrites(int count) {
+        mFailWrites = count;
+    }
+
+    /**
+     * Lets the next RSSI reads fail with GATT_FAILURE.
+     */
+    synchronized void failNextRssiReads(int count) {
+        mFailRssiReads = count;
+    }
+
+    /**
+     * Presses the button of an O-Click 1, or short presses the middle key
+     * of an O-Click 2.
+     */
+    void press() {
+        if (mModel == Model.OCLICK_1) {
+            synchronized (this) {
+                notify(OclickConnection.TRIGGER_SERVICE_UUID,
+                        OclickConnection.TRIGGER_CHARACTERISTIC_V1_UUID, new byte[] { 1 });
+            }
+        } else {
+            press(Oclick2Constants.KEYCODE_MIDDLE, Oclick2Constants.KEYTYPE_SHORT);
+        }
+    }
+
+    /**
+     * Sends an O-Click 2 key event.
+     */
+    synchronized void press(int keyCode, int keyType) {
+        notifyFrame(Oclick2Codec.encodeKey(mFrame, keyCode, keyType));
+    }
+
+    synchronized boolean isConnected() {
+        return mLink != null;
+    }
+
+    synchronized int getConnectionCount() {
+        return mConnections;
+    }
+
+    synchronized int getAlertLevel() {
+        return mAlertLevel;
+    }
+
+    synchronized int getLinkLossLevel() {
+        return mLinkLossLevel;
+    }
+
+    synchronized int getRssiReportInterval() {
+        return mRssiReportInterval;
+    }
+
+    synchronized int[] getConnectionParams() {
+        return new int[] { mMinInterval, mMaxInterval, mConnectionLatency, mSupervisionTimeout };
+    }
+
+    private boolean hasCharacteristic(UUID service, UUID characteristic) {
+        if (service.equals(OclickConnection.IMMEDIATE_ALERT_SERVICE_UUID)) {
+            return characteristic.equals(OclickConnection.IMMEDIATE_ALERT_CHARACTERISTIC_UUID);
+        } else if (service.equals(OclickConnection.LINK_LOSS_SERVICE_UUID)) {
+            return characteristic.equals(OclickConnection.LINK_LOSS_CHARACTERISTIC_UUID);
+        } else if (mModel == Model.OCLICK_1) {
+            return service.equals(OclickConnection.TRIGGER_SERVICE_UUID)
+                    && characteristic.equals(OclickConnection.TRIGGER_CHARACTERISTIC_V1_UUID);
+        } else {
+            return service.equals(OclickConnection.OCLICK2_SERVICE_UUID)
+                    && characteristic.equals(OclickConnection.OCLICK2_KEY_CHARACTERISTIC_UUID);
+        }
+    }
+
+    private void establish(final Link link) {
+        if (mLink != null) {
+            // The O-Click only accepts a single central
+            drop(mLink, STATUS_LINK_LOSS);
+        }
+        mPendingLink = null;
+        mLink = link;
+        link.connected = true;
+        mConnections++;
+        deliver(link, new Runnable() {
+            @Override
+            public void run() {
+                link.callback.onConnectionStateChange(link, GattTransport.GATT_SUCCESS,
+                        GattTransport.STATE_CONNECTED);
+            }
+        });
+    }
+
+    private void drop(final Link link, final int status) {
+        if (link == mPendingLink) {
+            mPendingLink = null;
+        }
+        if (link == mLink) {
+            mLink = null;
+            setRssiReportInterval(0);
+        }
+        link.connected = false;
+        link.notifying.clear();
+        deliver(link, new Runnable() {
+            @Override
+            public void run() {
+                link.callback.onConnectionStateChange(link, status,
+                        GattTransport.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    private void onWrite(Link link, UUID service, UUID characteristic, byte[] value) {
+        if (service.equals(OclickConnection.IMMEDIATE_ALERT_SERVICE_UUID)) {
+            mAlertLevel = value[0];
+            return;
+        } else if (service.equals(OclickConnection.LINK_LOSS_SERVICE_UUID)) {
+            mLinkLossLevel = value[0];
+            return;
+        } else if (mModel != Model.OCLICK_2) {
+            return;
+        }
+
+        if (value.length > mFrame.capacity()) {
+            return;
+        }
+        mFrame.clear();
+        mFrame.put(value).flip();
+        if (Oclick2Codec.decode(mFrame, mMessage) != Oclick2Codec.Result.OK) {
+            return;
+        }
+        switch (mMessage.msgClass) {
+            case Oclick2Constants.MSG_CLASS_CONNECTION:
+                if (mMessage.type == Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS) {
+                    mMinInterval = mMessage.minInterval;
+                    mMaxInterval = mMessage.maxInterval;
+                    mConnectionLatency = mMessage.latency;
+                    mSupervisionTimeout = mMessage.supervisionTimeout;
+                } else if (!mMessage.hasPayload) {
+                    notifyFrame(Oclick2Codec.encodeConnectionParams(mFrame,
+                            Oclick2Constants.MSG_TYPE_CONNECTION_GET_PARAMS, mMinInterval,
+                            mMaxInterval, mConnectionLatency, mSupervisionTimeout));
+                }
+                break;
+            case Oclick2Constants.MSG_CLASS_LINKLOSE:
+                if (mMessage.type == Oclick2Constants.MSG_TYPE_LINKLOSE_SET_LEVEL) {
+                    mLinkLossLevel = mMessage.level;
+                } else {
+                    notifyFrame(Oclick2Codec.encodeLinkLossLevel(mFrame,
+                            Oclick2Constants.MSG_TYPE_LINKLOSE_GET_LEVEL, mLinkLossLevel));
+                }
+                break;
+            case Oclick2Constants.MSG_CLASS_RSSI:
+                if (mMessage.type == Oclick2Constants.MSG_TYPE_RSSI_READ_RATE_SET) {
+                    setRssiReportInterval(mMessage.reportInterval);
+                } else if (mMessage.type == Oclick2Constants.MSG_TYPE_RSSI_GET) {
+                    notifyFrame(Oclick2Codec.encodeRssi(mFrame, mRssi));
+                } else {
+                    notifyFrame(Oclick2Codec.encodeRssiReportInterval(mFrame,
+                            Oclick2Constants.MSG_TYPE_RSSI_READ_RATE_GET, mRssiReportInterval));
+                }
+                break;
+        }
+    }
+
+    private void setRssiReportInterval(int seconds) {
+        mRssiReportInterval = seconds;
+        mHandler.removeCallbacks(mRssiReportRunnable);
+        if (seconds > 0) {
+            mHandler.postDelayed(mRssiReportRunnable, seconds * 1000L);
+        }
+    }
+
+    private void notifyFrame(ByteBuffer frame) {
+        byte[] value = new byte[frame.remaining()];
+        frame.get(value);
+        notify(OclickConnection.OCLICK2_SERVICE_UUID,
+                OclickConnection.OCLICK2_KEY_CHARACTERISTIC_UUID, value);
+    }
+
+    private void notify(final UUID service, final UUID characteristic, final byte[] value) {
+        final Link link = mLink;
+        if (link == null || !link.notifying.contains(characteristic)) {
+            return;
+        }
+        deliver(link, new Runnable() {
+            @Override
+            public void run() {
+                link.callback.onCharacteristicChanged(link, service, characteristic,
+                        ByteBuffer.wrap(value));
+            }
+        });
+    }
+
+    private void deliver(final Link link, final Runnable callback) {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FakeGattPeripheral.this) {
+                    if (link.closed) {
+                        return;
+                    }
+                }
+                callback.run();
+            }
+        }, mLatency);
+    }
+}
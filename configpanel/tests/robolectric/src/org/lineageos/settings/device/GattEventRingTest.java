@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Fills a {@link GattEventRing} while its handler is paused, the way a
+ * stalled worker thread would.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GattEventRingTest {
+
+    private final List<String> mEvents = new ArrayList<>();
+
+    private final GattTransport.Callback mTarget = new GattTransport.Callback() {
+        @Override
+        public void onConnectionStateChange(GattTransport transport, int status,
+                int newState) {
+            mEvents.add("state " + newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(GattTransport transport, int status) {
+            mEvents.add("discovered");
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattTransport transport, UUID service,
+                UUID characteristic, int status) {
+            mEvents.add("write");
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattTransport transport, UUID service,
+                UUID characteristic, ByteBuffer value) {
+            mEvents.add("changed " + value.get(value.position()));
+        }
+
+        @Override
+        public void onReadRemoteRssi(GattTransport transport, int rssi, int status) {
+            mEvents.add("rssi " + rssi);
+        }
+    };
+
+    @Test
+    public void events_areReplayedInOrder() {
+        GattEventRing ring = new GattEventRing(new Handler(Looper.getMainLooper()), mTarget);
+
+        ring.onConnectionStateChange(null, GattTransport.GATT_SUCCESS,
+                GattTransport.STATE_CONNECTED);
+        ring.onServicesDiscovered(null, GattTransport.GATT_SUCCESS);
+        ByteBuffer value = ByteBuffer.wrap(new byte[] { 0, 7 });
+        value.position(1);
+        ring.onCharacteristicChanged(null, OclickConnection.OCLICK2_SERVICE_UUID,
+                OclickConnection.OCLICK2_KEY_CHARACTERISTIC_UUID, value);
+        ring.onReadRemoteRssi(null, -60, GattTransport.GATT_SUCCESS);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(4, mEvents.size());
+        assertEquals("state " + GattTransport.STATE_CONNECTED, mEvents.get(0));
+        assertEquals("discovered", mEvents.get(1));
+        assertEquals("changed 7", mEvents.get(2));
+        assertEquals("rssi -60", mEvents.get(3));
+    }
+
+    @Test
+    public void fullRing_dropsOnlyNotifications() {
+        GattEventRing ring = new GattEventRing(new Handler(Looper.getMainLooper()), mTarget);
+
+        ByteBuffer value = ByteBuffer.allocate(1);
+        for (int i = 0; i < 100; i++) {
+            value.clear();
+            ring.onCharacteristicChanged(null, OclickConnection.OCLICK2_SERVICE_UUID,
+                    OclickConnection.OCLICK2_KEY_CHARACTERISTIC_UUID, value);
+        }
+        // A reconnect with an operation in flight of each connection
+        ring.onCharacteristicWrite(null, OclickConnection.OCLICK2_SERVICE_UUID,
+                OclickConnection.OCLICK2_KEY_CHARACTERISTIC_UUID, GattTransport.GATT_SUCCESS);
+        ring.onConnectionStateChange(null, GattTransport.GATT_SUCCESS,
+                GattTransport.STATE_DISCONNECTED);
+        ring.onConnectionStateChange(null, GattTransport.GATT_SUCCESS,
+                GattTransport.STATE_CONNECTED);
+        ring.onServicesDiscovered(null, GattTransport.GATT_SUCCESS);
+        ring.onReadRemoteRssi(null, -40, GattTransport.GATT_SUCCESS);
+        ring.onConnectionStateChange(null, GattTransport.GATT_SUCCESS,
+                GattTransport.STATE_DISCONNECTED);
+        ShadowLooper.idleMainLooper();
+
+        assertEquals(62, mEvents.size());
+        for (int i = 0; i < 56; i++) {
+            assertEquals("changed 0", mEvents.get(i));
+        }
+        assertEquals("write", mEvents.get(56));
+        assertEquals("state " + GattTransport.STATE_DISCONNECTED, mEvents.get(57));
+        assertEquals("state " + GattTransport.STATE_CONNECTED, mEvents.get(58));
+        assertEquals("discovered", mEvents.get(59));
+        assertEquals("rssi -40", mEvents.get(60));
+        assertEquals("state " + GattTransport.STATE_DISCONNECTED, mEvents.get(61));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.lineageos.settings.device.Oclick2Codec.Message;
+import org.lineageos.settings.device.Oclick2Codec.Result;
+
+import java.nio.ByteBuffer;
+
+public class Oclick2CodecTest {
+
+    private final ByteBuffer mBuffer = Oclick2Codec.allocateBuffer();
+    private final Message mMessage = new Message();
+
+    @Test
+    public void key_roundTrips() {
+        Oclick2Codec.encodeKey(mBuffer, Oclick2Constants.KEYCODE_LEFT,
+                Oclick2Constants.KEYTYPE_DOUBLE);
+
+        assertArrayEquals(new byte[] { 5, 0, 0x52 }, remaining(mBuffer));
+        assertEquals(Result.OK, Oclick2Codec.decode(mBuffer, mMessage));
+        assertEquals(Oclick2Constants.MSG_CLASS_KEY, mMessage.msgClass);
+        assertEquals(Oclick2Constants.KEYCODE_LEFT, mMessage.keyCode);
+        assertEquals(Oclick2Constants.KEYTYPE_DOUBLE, mMessage.keyType);
+    }
+
+    @Test
+    public void connectionParams_roundTrip() {
+        Oclick2Codec.encodeConnectionParams(mBuffer,
+                Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS, 0x0150, 0x0190, 4, 800);
+
+        assertArrayEquals(new byte[] { 7, 2, 0x50, 0x01, (byte) 0x90, 0x01, 4, 0, 0x20, 0x03 },
+                remaining(mBuffer));
+        assertEquals(Result.OK, Oclick2Codec.decode(mBuffer, mMessage));
+        assertEquals(Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS, mMessage.type);
+        assertTrue(mMessage.hasPayload);
+        assertEquals(0x0150, mMessage.minInterval);
+        assertEquals(0x0190, mMessage.maxInterval);
+        assertEquals(4, mMessage.latency);
+        assertEquals(800, mMessage.supervisionTimeout);
+    }
+
+    @Test
+    public void connectionQuery_hasNoPayload() {
+        Oclick2Codec.encodeConnectionQuery(mBuffer);
+
+        assertEquals(Result.OK, Oclick2Codec.decode(mBuffer, mMessage));
+        assertEquals(Oclick2Constants.MSG_CLASS_CONNECTION, mMessage.msgClass);
+        assertEquals(Oclick2Constants.MSG_TYPE_CONNECTION_GET_PARAMS, mMessage.type);
+        assertFalse(mMessage.hasPayload);
+    }
+
+    @Test
+    public void linkLossLevel_roundTrips() {
+        Oclick2Codec.encodeLinkLossLevel(mBuffer,
+                Oclick2Constants.MSG_TYPE_LINKLOSE_SET_LEVEL, 2);
+
+        assertEquals(Result.OK, Oclick2Codec.decode(mBuffer, mMessage));
+        assertEquals(Oclick2Constants.MSG_CLASS_LINKLOSE, mMessage.msgClass);
+        assertEquals(2, mMessage.level);
+    }
+
+    @Test
+    public void rssi_keepsItsSign() {
+        Oclick2Codec.encodeRssi(mBuffer, -87);
+
+        assertEquals(Result.OK, Oclick2Codec.decode(mBuffer, mMessage));
+        assertEquals(Oclick2Constants.MSG_TYPE_RSSI_GET, mMessage.type);
+        assertEquals(-87, mMessage.rssi);
+    }
+
+    @Test
+    public void rssiReportInterval_isUnsigned() {
+        Oclick2Codec.encodeRssiReportInterval(mBuffer,
+                Oclick2Constants.MSG_TYPE_RSSI_READ_RATE_SET, 200);
+
+        assertEquals(Result.OK, Oclick2Codec.decode(mBuffer, mMessage));
+        assertEquals(200, mMessage.reportInterval);
+    }
+
+    @Test
+    public void decode_leavesPositionAndLimit() {
+        mBuffer.clear();
+        mBuffer.put(new byte[] { 9, 9, 5, 0, 0x11 });
+        mBuffer.flip();
+        mBuffer.position(2);
+
+        assertEquals(Result.OK, Oclick2Codec.decode(mBuffer, mMessage));
+        assertEquals(Oclick2Constants.KEYCODE_MIDDLE, mMessage.keyCode);
+        assertEquals(Oclick2Constants.KEYTYPE_SHORT, mMessage.keyType);
+        assertEquals(2, mBuffer.position());
+        assertEquals(5, mBuffer.limit());
+    }
+
+    @Test
+    public void mergeKey_separatesClassesAndTypes() {
+        int params = Oclick2Codec.getMergeKey(Oclick2Codec.encodeConnectionParams(mBuffer,
+                Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS, 1, 2, 3, 4));
+        int otherParams = Oclick2Codec.getMergeKey(Oclick2Codec.encodeConnectionParams(
+                mBuffer, Oclick2Constants.MSG_TYPE_CONNECTION_SET_PARAMS, 5, 6, 7, 8));
+        int query = Oclick2Codec.getMergeKey(Oclick2Codec.encodeConnectionQuery(mBuffer));
+
+        assertEquals(params, otherParams);
+        assertNotEquals(params, query);
+    }
+
+    @Test
+    public void malformedFrames_areRejected() {
+        assertEquals(Result.TOO_SHORT, decode());
+        assertEquals(Result.TOO_SHORT, decode(5));
+        assertEquals(Result.UNKNOWN_CLASS, decode(4, 1, 0));
+        assertEquals(Result.UNKNOWN_TYPE, decode(1, 0, 0, 0));
+        assertEquals(Result.UNKNOWN_TYPE, decode(3, 4, 0));
+        assertEquals(Result.UNKNOWN_TYPE, decode(11, 4, 0));
+        // Wrong payload sizes
+        assertEquals(Result.BAD_LENGTH, decode(1, 1, 0));
+        assertEquals(Result.BAD_LENGTH, decode(5, 0));
+        assertEquals(Result.BAD_LENGTH, decode(5, 0, 0x11, 0));
+        assertEquals(Result.BAD_LENGTH, decode(7, 2, 0, 0, 0, 0));
+        assertEquals(Result.BAD_LENGTH, decode(8, 2));
+        // Only queries may come without a payload
+        assertEquals(Result.BAD_LENGTH, decode(7, 2));
+        assertEquals(Result.BAD_LENGTH, decode(11, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsInvalidType() {
+        Oclick2Codec.encodeLinkLossLevel(mBuffer, 3, 0);
+    }
+
+    private Result decode(int... bytes) {
+        mBuffer.clear();
+        for (int b : bytes) {
+            mBuffer.put((byte) b);
+        }
+        mBuffer.flip();
+        return Oclick2Codec.decode(mBuffer, mMessage);
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
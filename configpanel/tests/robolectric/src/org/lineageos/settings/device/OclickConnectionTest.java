@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.lineageos.settings.device.OclickConnection.ConnectionProfile;
+import org.lineageos.settings.device.OclickConnection.ConnectionState;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives an {@link OclickConnection} against a {@link FakeGattPeripheral}.
+ * Both run on the main looper, whose clock only advances in idle().
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OclickConnectionTest {
+
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private FakeGattPeripheral mPeripheral;
+    private OclickConnection mConnection;
+
+    private final List<ConnectionState> mStates = new ArrayList<>();
+    private int mShutters;
+    private int mLocatorToggles;
+    private final List<int[]> mKeys = new ArrayList<>();
+
+    private final OclickConnection.Listener mListener = new OclickConnection.Listener() {
+        @Override
+        public void onConnectionStateChanged(OclickConnection connection) {
+            mStates.add(connection.getConnectionState());
+        }
+
+        @Override
+        public void onShutter(OclickConnection connection) {
+            mShutters++;
+        }
+
+        @Override
+        public void onLocatorToggle(OclickConnection connection) {
+            mLocatorToggles++;
+        }
+
+        @Override
+        public void onKey(OclickConnection connection, int key, int action) {
+            mKeys.add(new int[] { key, action });
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (mConnection != null) {
+            mConnection.close();
+        }
+    }
+
+    @Test
+    public void connect_setsUpOclick1() {
+        connect(FakeGattPeripheral.Model.OCLICK_1);
+
+        assertTrue(mPeripheral.isConnected());
+        assertEquals(ConnectionState.CONNECTED, mConnection.getConnectionState());
+        assertEquals(1, mStates.size());
+        assertEquals(2, mPeripheral.getLinkLossLevel());
+        assertEquals(0, mPeripheral.getAlertLevel());
+    }
+
+    @Test
+    public void connect_appliesOclick2ConnectionProfile() {
+        connect(FakeGattPeripheral.Model.OCLICK_2);
+
+        mConnection.setConnectionProfile(ConnectionProfile.LOW_POWER);
+        idle(1000);
+
+        ConnectionProfile profile = ConnectionProfile.LOW_POWER;
+        assertArrayEquals(new int[] { profile.minInterval, profile.maxInterval,
+                profile.latency, profile.supervisionTimeout },
+                mPeripheral.getConnectionParams());
+    }
+
+    @Test
+    public void oclick1Taps_areToldApart() {
+        connect(FakeGattPeripheral.Model.OCLICK_1);
+
+        mPeripheral.press();
+        idle(TapRecognizer.MAX_WINDOW);
+        assertEquals(1, mShutters);
+        assertEquals(0, mLocatorToggles);
+
+        mPeripheral.press();
+        idle(TapRecognizer.MIN_WINDOW / 2);
+        mPeripheral.press();
+        idle(TapRecognizer.MAX_WINDOW);
+        assertEquals(1, mShutters);
+        assertEquals(1, mLocatorToggles);
+    }
+
+    @Test
+    public void oclick2Keys_reachListener() {
+        connect(FakeGattPeripheral.Model.OCLICK_2);
+
+        mPeripheral.press(Oclick2Constants.KEYCODE_MIDDLE, Oclick2Constants.KEYTYPE_SHORT);
+        mPeripheral.press(Oclick2Constants.KEYCODE_MIDDLE, Oclick2Constants.KEYTYPE_DOUBLE);
+        idle(100);
+
+        assertEquals(1, mShutters);
+        assertEquals(1, mLocatorToggles);
+        assertEquals(2, mKeys.size());
+        assertArrayEquals(new int[] { Oclick2Constants.KEYCODE_MIDDLE,
+                Oclick2Constants.KEYTYPE_DOUBLE }, mKeys.get(1));
+    }
+
+    @Test
+    public void fence_alertsOclick1OutOfRange() {
+        connect(FakeGattPeripheral.Model.OCLICK_1);
+        mConnection.setRssiAlertEnabled(true);
+        idle(RssiFence.MAX_POLL_INTERVAL);
+
+        mPeripheral.setRssi(-100);
+        idle(4 * RssiFence.MAX_POLL_INTERVAL);
+        assertEquals(2, mPeripheral.getAlertLevel());
+
+        mPeripheral.setRssi(-60);
+        idle(4 * RssiFence.MAX_POLL_INTERVAL);
+        assertEquals(0, mPeripheral.getAlertLevel());
+    }
+
+    @Test
+    public void fence_keepsPollingWhenReadsFail() {
+        connect(FakeGattPeripheral.Model.OCLICK_1);
+        mPeripheral.failNextRssiReads(10);
+        mConnection.setRssiAlertEnabled(true);
+        idle(2 * RssiFence.MAX_POLL_INTERVAL);
+
+        mPeripheral.setRssi(-100);
+        idle(4 * RssiFence.MAX_POLL_INTERVAL);
+        assertEquals(2, mPeripheral.getAlertLevel());
+    }
+
+    @Test
+    public void fence_usesOclick2Reports() {
+        connect(FakeGattPeripheral.Model.OCLICK_2);
+        mConnection.setRssiAlertEnabled(true);
+        idle(RssiFence.MAX_POLL_INTERVAL);
+        // Far inside the fence, reports are as rare as they get
+        assertEquals(RssiFence.MAX_POLL_INTERVAL / 1000, mPeripheral.getRssiReportInterval());
+
+        // Close to the edge they come as often as they can
+        mPeripheral.setRssi(RssiFence.ENTER_THRESHOLD + 1);
+        idle(4 * RssiFence.MAX_POLL_INTERVAL);
+        assertEquals(RssiFence.MIN_POLL_INTERVAL / 1000, mPeripheral.getRssiReportInterval());
+        assertEquals(0, mPeripheral.getAlertLevel());
+
+        mPeripheral.setRssi(-100);
+        idle(4 * RssiFence.MAX_POLL_INTERVAL);
+        assertEquals(2, mPeripheral.getAlertLevel());
+    }
+
+    @Test
+    public void linkLoss_reconnects() {
+        connect(FakeGattPeripheral.Model.OCLICK_1);
+
+        mPeripheral.dropLink();
+        assertFalse(mPeripheral.isConnected());
+        idle(1000);
+
+        assertEquals(3, mStates.size());
+        assertEquals(ConnectionState.RECONNECTING, mStates.get(1));
+        assertEquals(ConnectionState.CONNECTED, mStates.get(2));
+        assertEquals(2, mPeripheral.getConnectionCount());
+        assertEquals(2, mPeripheral.getLinkLossLevel());
+    }
+
+    private void connect(FakeGattPeripheral.Model model) {
+        mPeripheral = new FakeGattPeripheral(model, new Handler(Looper.getMainLooper()));
+        mPeripheral.setLatency(10);
+        mConnection = new OclickConnection(ADDRESS, mPeripheral, Looper.getMainLooper(),
+                OclickEventLog.open(RuntimeEnvironment.application), mListener);
+        mConnection.setDisconnectAlertEnabled(true);
+        mConnection.connect();
+        idle(1000);
+    }
+
+    private static void idle(long millis) {
+        ShadowLooper.idleMainLooper(millis, TimeUnit.MILLISECONDS);
+    }
+}
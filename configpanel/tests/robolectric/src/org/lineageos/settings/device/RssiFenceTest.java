@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Replays RSSI traces of a phone carried away from and back to an O-Click,
+ * one sample per poll, against an {@link RssiFence}.
+ */
+public class RssiFenceTest {
+
+    // Walking off from the desk until the alert goes off
+    private static final int[] WALK_AWAY = {
+        -62, -65, -61, -70, -74, -72, -79, -83, -81, -88,
+        -91, -89, -95, -97, -94, -99, -101, -98, -100, -102,
+    };
+    // Standing at the edge of the range, just outside the exit threshold
+    private static final int[] EDGE = {
+        -86, -93, -88, -91, -85, -94, -89, -87, -92, -90,
+        -86, -91, -93, -88, -89, -92, -87, -90, -91, -88,
+    };
+    // Walking back to the desk
+    private static final int[] WALK_BACK = {
+        -96, -93, -90, -91, -86, -84, -80, -82, -76, -73,
+        -70, -72, -66, -64, -63, -61, -62, -60, -61, -60,
+    };
+
+    private static final float DELTA = 0.001f;
+
+    @Test
+    public void walkAway_entersOnce() {
+        RssiFence fence = new RssiFence();
+        int entered = replay(fence, WALK_AWAY);
+
+        assertTrue(entered > 0);
+        assertTrue(fence.isAlerting());
+    }
+
+    @Test
+    public void edgeOfRange_doesNotFlap() {
+        RssiFence fence = new RssiFence();
+        replay(fence, WALK_AWAY);
+
+        // Raw samples cross both thresholds, the smoothed value crosses neither
+        assertEquals(-1, replay(fence, EDGE));
+        assertTrue(fence.isAlerting());
+    }
+
+    @Test
+    public void walkBack_exitsOnlyAboveExitThreshold() {
+        RssiFence fence = new RssiFence();
+        replay(fence, WALK_AWAY);
+
+        boolean heldAboveEnter = false;
+        for (int rssi : WALK_BACK) {
+            boolean changed = fence.addSample(rssi);
+            float smoothed = fence.getSmoothedRssi();
+            if (smoothed > RssiFence.ENTER_THRESHOLD && smoothed <= RssiFence.EXIT_THRESHOLD) {
+                // Between the thresholds the fence keeps its state
+                assertFalse(changed);
+                assertTrue(fence.isAlerting());
+                heldAboveEnter = true;
+            } else if (changed) {
+                assertTrue(smoothed > RssiFence.EXIT_THRESHOLD);
+            }
+        }
+        assertTrue(heldAboveEnter);
+        assertFalse(fence.isAlerting());
+    }
+
+    @Test
+    public void smoothing_isExponentiallyWeighted() {
+        RssiFence fence = new RssiFence();
+
+        fence.addSample(-60);
+        assertEquals(-60f, fence.getSmoothedRssi(), DELTA);
+        fence.addSample(-80);
+        assertEquals(-66f, fence.getSmoothedRssi(), DELTA);
+        fence.addSample(-80);
+        assertEquals(-70.2f, fence.getSmoothedRssi(), DELTA);
+    }
+
+    @Test
+    public void fallingTrend_pollsSooner() {
+        RssiFence steady = new RssiFence();
+        RssiFence falling = new RssiFence();
+        for (int i = 0; i < 20; i++) {
+            steady.addSample(-80);
+        }
+        falling.addSample(-70);
+        falling.addSample(-76);
+        falling.addSample(-82);
+        falling.addSample(-90);
+
+        // Both read about -80 dBm, but only one is on its way out
+        assertEquals(steady.getSmoothedRssi(), falling.getSmoothedRssi(), 1f);
+        assertTrue(falling.getPollInterval() < steady.getPollInterval());
+    }
+
+    @Test
+    public void pollInterval_staysWithinBounds() {
+        RssiFence fence = new RssiFence();
+        assertEquals(RssiFence.MIN_POLL_INTERVAL, fence.getPollInterval());
+
+        for (int[] trace : new int[][] { WALK_AWAY, EDGE, WALK_BACK }) {
+            for (int rssi : trace) {
+                fence.addSample(rssi);
+                long interval = fence.getPollInterval();
+                assertTrue(interval >= RssiFence.MIN_POLL_INTERVAL);
+                assertTrue(interval <= RssiFence.MAX_POLL_INTERVAL);
+            }
+        }
+        // Back at the desk, far from the enter threshold
+        assertEquals(RssiFence.MAX_POLL_INTERVAL, fence.getPollInterval());
+    }
+
+    @Test
+    public void pollInterval_scalesWithMargin() {
+        RssiFence fence = new RssiFence();
+        fence.addSample(RssiFence.ENTER_THRESHOLD + 1);
+        assertEquals(RssiFence.MIN_POLL_INTERVAL + (RssiFence.MAX_POLL_INTERVAL
+                - RssiFence.MIN_POLL_INTERVAL) / 15, fence.getPollInterval());
+
+        fence.reset();
+        for (int i = 0; i < 20; i++) {
+            fence.addSample(RssiFence.EXIT_THRESHOLD - 16);
+        }
+        // Alerting and far below the exit threshold
+        assertTrue(fence.isAlerting());
+        assertEquals(RssiFence.MAX_POLL_INTERVAL, fence.getPollInterval());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exitBelowEnter_isRejected() {
+        new RssiFence(-80, -90);
+    }
+
+    /**
+     * Feeds a trace and returns the index of the only sample that changed
+     * the alert state, or -1 if none did.
+     */
+    private static int replay(RssiFence fence, int[] trace) {
+        int changed = -1;
+        for (int i = 0; i < trace.length; i++) {
+            if (fence.addSample(trace[i])) {
+                assertEquals(-1, changed);
+                changed = i;
+            }
+        }
+        return changed;
+    }
+}
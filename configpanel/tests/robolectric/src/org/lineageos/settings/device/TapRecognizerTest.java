@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Taps are fed with made up times, timeouts are fired by hand once the
+ * returned delay would have elapsed.
+ */
+public class TapRecognizerTest {
+
+    private final StringBuilder mTaps = new StringBuilder();
+
+    private final TapRecognizer mRecognizer = new TapRecognizer(new TapRecognizer.Listener() {
+        @Override
+        public void onSingleTap() {
+            mTaps.append('S');
+        }
+
+        @Override
+        public void onDoubleTap() {
+            mTaps.append('D');
+        }
+    });
+
+    private long mNow = 10000;
+
+    @Test
+    public void singleTap_isReportedAfterWindow() {
+        long delay = tap(0);
+        assertEquals("", mTaps.toString());
+
+        mRecognizer.onTimeout();
+        assertEquals("S", mTaps.toString());
+        assertEquals(600, delay);
+    }
+
+    @Test
+    public void doubleTap_isReportedRightAway() {
+        tap(0);
+        assertEquals(-1, tap(200));
+
+        mRecognizer.onTimeout();
+        assertEquals("D", mTaps.toString());
+    }
+
+    @Test
+    public void instantSingle_reportsBoth() {
+        mRecognizer.setInstantSingle(true);
+
+        tap(0);
+        assertEquals("S", mTaps.toString());
+        tap(200);
+        mRecognizer.onTimeout();
+        assertEquals("SD", mTaps.toString());
+    }
+
+    @Test
+    public void window_adaptsToFastDoubleTaps() {
+        for (int i = 0; i < 20; i++) {
+            tap(2000);
+            tap(100);
+        }
+
+        assertEquals(TapRecognizer.MIN_WINDOW, mRecognizer.getWindow());
+        assertEquals("DDDDDDDDDDDDDDDDDDDD", mTaps.toString());
+    }
+
+    @Test
+    public void window_adaptsToSlowDoubleTaps() {
+        for (int i = 0; i < 20; i++) {
+            tap(3000);
+            tap(mRecognizer.getWindow() - 1);
+        }
+
+        assertTrue(mRecognizer.getWindow() > 600);
+        assertTrue(mRecognizer.getWindow() <= TapRecognizer.MAX_WINDOW);
+    }
+
+    @Test
+    public void expiredSingleTaps_areNotLearned() {
+        long window = mRecognizer.getWindow();
+        for (int i = 0; i < 20; i++) {
+            tap(3000);
+            mRecognizer.onTimeout();
+            // Just too late for a double tap
+            tap(window + 10);
+            mRecognizer.onTimeout();
+        }
+
+        assertEquals(window, mRecognizer.getWindow());
+        assertEquals(40, mTaps.length());
+    }
+
+    @Test
+    public void reset_dropsPendingTap() {
+        tap(0);
+        mRecognizer.reset();
+        mRecognizer.onTimeout();
+        tap(200);
+
+        // The second tap starts over instead of completing a double tap
+        assertEquals("", mTaps.toString());
+        mRecognizer.onTimeout();
+        assertEquals("S", mTaps.toString());
+    }
+
+    private long tap(long after) {
+        mNow += after;
+        return mRecognizer.onTap(mNow);
+    }
+}